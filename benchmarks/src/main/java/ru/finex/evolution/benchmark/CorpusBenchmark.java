@@ -0,0 +1,85 @@
+package ru.finex.evolution.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.finex.evolution.impl.MigrationBundle;
+import ru.finex.evolution.impl.MigrationBundleCompiler;
+import ru.finex.evolution.impl.MigrationData;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Startup cost of a synthetic evolutions corpus: parsing and checksumming of all files
+ * (done by {@link MigrationBundleCompiler} the same way as on startup without bundle) and reading of bundle.
+ * @author m0nster.mind
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CorpusBenchmark {
+
+    @Param({ "10", "100" })
+    private int components;
+
+    @Param({ "10", "100" })
+    private int versions;
+
+    @Param({ "10" })
+    private int statements;
+
+    private Path root;
+    private Path bundle;
+
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("evolution-corpus");
+        bundle = root.resolve("evolutions.idx");
+        Path directory = Files.createDirectories(root.resolve("evolution"));
+        byte[] script = Generators.script(statements).getBytes(StandardCharsets.UTF_8);
+        for (int component = 0; component < components; component++) {
+            for (int version = 1; version <= versions; version++) {
+                Files.write(directory.resolve(Generators.component(component) + "_" + version + "_generated.sql"), script);
+            }
+        }
+        MigrationBundleCompiler.compile(root, bundle);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder())
+                .forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int parseCorpus() throws IOException {
+        return MigrationBundleCompiler.compile(root, bundle);
+    }
+
+    @Benchmark
+    public List<MigrationData> readBundle() throws IOException {
+        return MigrationBundle.read(MigrationBundle.load(bundle.toUri().toURL()));
+    }
+
+}
@@ -0,0 +1,136 @@
+package ru.finex.evolution.benchmark;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.postgresql.ds.PGSimpleDataSource;
+import ru.finex.evolution.MigrationConfig;
+import ru.finex.evolution.impl.MigrationChecksums;
+import ru.finex.evolution.impl.MigrationDao;
+import ru.finex.evolution.impl.MigrationData;
+import ru.finex.evolution.impl.MigrationSession;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+
+/**
+ * Execution of migrations by {@link MigrationDao}.
+ * Embedded PostgreSQL is started by default, set {@code -Dbenchmark.jdbc.url} (and optionally
+ * {@code benchmark.jdbc.user}, {@code benchmark.jdbc.password}) to run against own database,
+ * benchmark creates and drops {@code db_evolutions*} and {@code benchmark_data} tables in it.
+ * @author m0nster.mind
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DaoBenchmark {
+
+    /**
+     * Count of statements in every migration.
+     */
+    @Param({ "1", "100", "1000" })
+    private int statements;
+
+    @Param({ "1000" })
+    private int batchSize;
+
+    private EmbeddedPostgres postgres;
+    private DataSource dataSource;
+    private MigrationDao dao;
+    private MigrationSession session;
+    private int version;
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+        String url = System.getProperty("benchmark.jdbc.url");
+        if (url == null) {
+            postgres = EmbeddedPostgres.builder().start();
+            dataSource = postgres.getPostgresDatabase();
+        } else {
+            PGSimpleDataSource pgDataSource = new PGSimpleDataSource();
+            pgDataSource.setUrl(url);
+            pgDataSource.setUser(System.getProperty("benchmark.jdbc.user", "postgres"));
+            pgDataSource.setPassword(System.getProperty("benchmark.jdbc.password", "postgres"));
+            dataSource = pgDataSource;
+        }
+
+        execute("drop table if exists db_evolutions, db_evolutions_fingerprints, db_evolutions_progress, benchmark_data");
+        execute("create table benchmark_data(id serial primary key, version int not null, value varchar not null)");
+
+        MigrationConfig config = new MigrationConfig();
+        config.setBatchSize(batchSize);
+        dao = new MigrationDao(dataSource, config);
+        dao.install();
+        session = dao.openSession();
+    }
+
+    @TearDown(Level.Iteration)
+    public void clean() throws SQLException {
+        execute("truncate db_evolutions, benchmark_data");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, SQLException {
+        session.close();
+        execute("drop table if exists db_evolutions, db_evolutions_fingerprints, db_evolutions_progress, benchmark_data");
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    /**
+     * Migration applied in own connection and transaction.
+     */
+    @Benchmark
+    public void applyAndSave() {
+        MigrationData data = nextMigration();
+        dao.applyAndSave(data, data.getChecksum());
+    }
+
+    /**
+     * Migration applied in own transaction of held connection.
+     */
+    @Benchmark
+    public void applyInSession() {
+        MigrationData data = nextMigration();
+        dao.applyAndSave(session, data, data.getChecksum());
+        dao.commit(session);
+    }
+
+    private MigrationData nextMigration() {
+        MigrationData data = new MigrationData();
+        data.setComponent("benchmark");
+        data.setVersion(++version);
+        for (int i = 0; i < statements; i++) {
+            data.getUpQueries().add("insert into benchmark_data(version, value) values(" + version + ", 'value " + i + "')");
+        }
+        data.getDownQueries().add("delete from benchmark_data where version = " + version);
+        data.setChecksum(MigrationChecksums.calculateChecksum(MigrationChecksums.getDigest(), data));
+        return data;
+    }
+
+    private void execute(String query) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(query);
+        }
+    }
+
+}
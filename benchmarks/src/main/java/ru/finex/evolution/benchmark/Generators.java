@@ -0,0 +1,175 @@
+package ru.finex.evolution.benchmark;
+
+import ru.finex.evolution.impl.MigrationChecksums;
+import ru.finex.evolution.impl.MigrationData;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Synthetic evolutions.
+ * @author m0nster.mind
+ */
+public final class Generators {
+
+    private Generators() {
+    }
+
+    /**
+     * Create checksummed migration.
+     * @param component component
+     * @param version version
+     * @param statements count of up statements
+     * @return migration
+     */
+    public static MigrationData migration(String component, int version, int statements) {
+        MigrationData data = new MigrationData();
+        data.setComponent(component);
+        data.setVersion(version);
+        data.setName("v" + version);
+        data.getResources().add("evolution/" + component + "_" + version + ".sql");
+        for (int i = 0; i < statements; i++) {
+            data.getUpQueries().add(statement(component, version, i));
+        }
+        data.getDownQueries().add("drop table if exists " + table(component, version, 0));
+        data.setChecksum(MigrationChecksums.calculateChecksum(MigrationChecksums.createDigest(), data));
+        return data;
+    }
+
+    /**
+     * Create evolution script.
+     * @param statements count of up statements
+     * @return script content
+     */
+    public static String script(int statements) {
+        StringBuilder script = new StringBuilder("# --- !Ups\n");
+        for (int i = 0; i < statements; i++) {
+            switch (i % 3) {
+                case 0:
+                    script.append(statement("logic", 1, i)).append(";\n\n");
+                    break;
+                case 1:
+                    script.append("-- seed; data\n")
+                        .append("insert into logic_v1_t").append(i - 1).append("(name) values('a;b'), (E'c\\'d');\n\n");
+                    break;
+                default:
+                    script.append("create function logic_f").append(i).append("() returns int as $$\n")
+                        .append("begin\n    return ").append(i).append(";\nend;\n$$ language plpgsql;\n\n");
+                    break;
+            }
+        }
+
+        script.append("# --- !Downs\n");
+        for (int i = 0; i < statements; i += 3) {
+            script.append("drop table if exists ").append(table("logic", 1, i)).append(";\n");
+        }
+        return script.toString();
+    }
+
+    /**
+     * Create statement.
+     * @param component component
+     * @param version version
+     * @param index statement index
+     * @return statement
+     */
+    public static String statement(String component, int version, int index) {
+        return "create table if not exists " + table(component, version, index) + "(\n" +
+            "    id serial primary key,\n" +
+            "    name varchar not null default 'name;" + index + "',\n" +
+            "    created timestamp default now()\n" +
+            ")";
+    }
+
+    /**
+     * Table name.
+     * @param component component
+     * @param version version
+     * @param index statement index
+     * @return table name
+     */
+    public static String table(String component, int version, int index) {
+        return component + "_v" + version + "_t" + index;
+    }
+
+    /**
+     * Create dependency graph of components.
+     * @param components count of components
+     * @param shape graph shape
+     * @param seed random seed
+     * @return dependencies by component, dependencies are always declared before dependents
+     */
+    public static Map<String, Set<String>> graph(int components, GraphShape shape, long seed) {
+        Random random = new Random(seed);
+        Map<String, Set<String>> graph = new LinkedHashMap<>();
+        for (int i = 0; i < components; i++) {
+            Set<String> dependencies = new LinkedHashSet<>();
+            switch (shape) {
+                case CHAIN:
+                    if (i > 0) {
+                        dependencies.add(component(i - 1));
+                    }
+                    break;
+                case WIDE:
+                    if (i > 0) {
+                        dependencies.add(component(0));
+                    }
+                    break;
+                case LAYERED:
+                    int layerSize = Math.max(1, (int) Math.sqrt(components));
+                    int layerStart = i / layerSize * layerSize;
+                    for (int j = layerStart - layerSize; j >= 0 && j < layerStart; j++) {
+                        if (random.nextInt(4) == 0) {
+                            dependencies.add(component(j));
+                        }
+                    }
+                    break;
+                case RANDOM:
+                    for (int j = 0; j < 3 && i > 0; j++) {
+                        dependencies.add(component(random.nextInt(i)));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown shape: " + shape);
+            }
+            graph.put(component(i), dependencies);
+        }
+
+        return graph;
+    }
+
+    /**
+     * Component name.
+     * @param index component index
+     * @return component name
+     */
+    public static String component(int index) {
+        return "component" + index;
+    }
+
+    /**
+     * Shape of dependency graph.
+     */
+    public enum GraphShape {
+        /**
+         * Every component depends on the previous one.
+         */
+        CHAIN,
+        /**
+         * Every component depends on the first one.
+         */
+        WIDE,
+        /**
+         * Components are split into layers, component depends on random components of the previous layer.
+         */
+        LAYERED,
+        /**
+         * Component depends on up to three random components declared before it.
+         */
+        RANDOM
+    }
+
+}
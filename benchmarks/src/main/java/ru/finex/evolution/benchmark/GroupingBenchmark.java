@@ -0,0 +1,68 @@
+package ru.finex.evolution.benchmark;
+
+import com.google.common.collect.ListMultimap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.finex.evolution.impl.MigrationData;
+import ru.finex.evolution.impl.MigrationParser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Grouping of migrations by component and version.
+ * @author m0nster.mind
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupingBenchmark {
+
+    /**
+     * Versions of a single component.
+     */
+    @Param({ "100", "1000", "5000" })
+    private int versions;
+
+    /**
+     * Every n-th version is split into two files.
+     */
+    @Param({ "10" })
+    private int splitEvery;
+
+    private List<MigrationData> migrations;
+
+    @Setup
+    public void setup() {
+        migrations = new ArrayList<>();
+        for (int version = 1; version <= versions; version++) {
+            migrations.add(Generators.migration("logic", version, 4));
+            if (version % splitEvery == 0) {
+                migrations.add(Generators.migration("logic", version, 4));
+            }
+        }
+        Collections.shuffle(migrations, new Random(versions));
+    }
+
+    @Benchmark
+    public ListMultimap<String, MigrationData> group() {
+        // combined migrations lose checksum, so grouping recalculates it every invocation as on startup
+        return MigrationParser.group(migrations);
+    }
+
+}
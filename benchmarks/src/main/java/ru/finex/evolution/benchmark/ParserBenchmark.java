@@ -0,0 +1,62 @@
+package ru.finex.evolution.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.finex.evolution.impl.MigrationChecksums;
+import ru.finex.evolution.impl.MigrationData;
+import ru.finex.evolution.impl.MigrationParser;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and checksumming of a single evolution script.
+ * @author m0nster.mind
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    /**
+     * Count of up statements in script.
+     */
+    @Param({ "10", "1000", "10000" })
+    private int statements;
+
+    private String script;
+    private MigrationData migration;
+    private MessageDigest digest;
+
+    @Setup
+    public void setup() throws IOException {
+        script = Generators.script(statements);
+        migration = MigrationParser.createMigration("evolution/logic_1.sql", new StringReader(script));
+        digest = MigrationChecksums.createDigest();
+    }
+
+    @Benchmark
+    public MigrationData parse() throws IOException {
+        return MigrationParser.createMigration("evolution/logic_1.sql", new StringReader(script));
+    }
+
+    @Benchmark
+    public String checksum() {
+        return MigrationChecksums.calculateChecksum(digest, migration);
+    }
+
+}
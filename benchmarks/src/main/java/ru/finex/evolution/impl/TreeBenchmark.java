@@ -0,0 +1,64 @@
+package ru.finex.evolution.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.finex.evolution.benchmark.Generators;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction and traversal of migration tree.
+ * Placed into the package of {@link MigrationTree} to build it from a synthetic graph.
+ * @author m0nster.mind
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeBenchmark {
+
+    @Param({ "100", "1000" })
+    private int components;
+
+    @Param({ "CHAIN", "WIDE", "LAYERED", "RANDOM" })
+    private Generators.GraphShape shape;
+
+    private Map<String, Set<String>> graph;
+    private MigrationTree tree;
+
+    @Setup
+    public void setup() {
+        graph = Generators.graph(components, shape, components);
+        tree = new MigrationTree(graph);
+    }
+
+    @Benchmark
+    public MigrationTree construct() {
+        return new MigrationTree(graph);
+    }
+
+    @Benchmark
+    public void applyAll(Blackhole blackhole) {
+        tree.applyOperation(blackhole::consume);
+    }
+
+    @Benchmark
+    public void applyLast(Blackhole blackhole) {
+        tree.applyOperation(Generators.component(components - 1), blackhole::consume);
+    }
+
+}
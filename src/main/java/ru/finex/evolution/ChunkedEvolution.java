@@ -0,0 +1,53 @@
+package ru.finex.evolution;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Регистрирует {@link ChunkedMigration} как версию эволюции компонента, наравне с файлами эволюций.
+ * Класс должен иметь конструктор без аргументов.
+ *
+ * @author m0nster.mind
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ChunkedEvolution {
+
+    /**
+     * Компонент эволюции.
+     *
+     * @return компонент
+     */
+    String component();
+
+    /**
+     * Версия эволюции, не должна совпадать с версиями файлов эволюций компонента.
+     *
+     * @return версия
+     */
+    int version();
+
+    /**
+     * Название эволюции.
+     *
+     * @return название
+     */
+    String name() default "";
+
+    /**
+     * Размер диапазона ключей, обрабатываемого в одной транзакции.
+     *
+     * @return размер диапазона
+     */
+    long chunkSize() default 10_000;
+
+    /**
+     * Пауза между транзакциями в миллисекундах.
+     *
+     * @return пауза
+     */
+    long throttle() default 0;
+
+}
@@ -0,0 +1,43 @@
+package ru.finex.evolution;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Миграция данных по диапазонам ключей, например заполнение новой колонки большой таблицы.
+ * Каждый диапазон обрабатывается и фиксируется в отдельной транзакции, прогресс сохраняется в {@code db_evolutions_progress},
+ * поэтому прерванная миграция продолжается с последнего обработанного диапазона.
+ * Обработка диапазона должна быть идемпотентной.
+ *
+ * @author m0nster.mind
+ * @see ChunkedEvolution
+ */
+public interface ChunkedMigration {
+
+    /**
+     * Первый обрабатываемый ключ, например {@code select coalesce(min(id), 0) from table}.
+     * @param connection соединение
+     * @return первый ключ
+     * @throws SQLException ошибка запроса
+     */
+    long getFirstKey(Connection connection) throws SQLException;
+
+    /**
+     * Последний обрабатываемый ключ включительно, например {@code select coalesce(max(id), -1) from table}.
+     * Запрашивается один раз при старте миграции, если он меньше первого ключа, обрабатывать нечего.
+     * @param connection соединение
+     * @return последний ключ
+     * @throws SQLException ошибка запроса
+     */
+    long getLastKey(Connection connection) throws SQLException;
+
+    /**
+     * Обработка диапазона ключей, транзакция фиксируется вызывающей стороной.
+     * @param connection соединение
+     * @param fromKey первый ключ диапазона включительно
+     * @param toKey последний ключ диапазона не включительно
+     * @throws SQLException ошибка запроса
+     */
+    void processChunk(Connection connection, long fromKey, long toKey) throws SQLException;
+
+}
@@ -0,0 +1,140 @@
+package ru.finex.evolution;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+/**
+ * Migration service settings, bind own instance to override defaults.
+ * @author m0nster.mind
+ */
+@Data
+@NoArgsConstructor(onConstructor_ = { @Inject })
+public class MigrationConfig {
+
+    /**
+     * Max count of components migrated at the same time.
+     * Components are started only after all its dependencies are migrated, {@code 1} is a serial migration.
+     */
+    private int parallelism = 1;
+
+    /**
+     * Transaction boundaries of migration.
+     * Serial migration holds one connection for the whole run, concurrent migration holds one connection per component.
+     * {@link TransactionMode#PLAN} is always serial.
+     */
+    private TransactionMode transactionMode = TransactionMode.VERSION;
+
+    /**
+     * Max count of evolution resources parsed and checksummed at the same time on startup.
+     */
+    private int parserParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Count of migrations prepared ahead while previous migration of component is applied, {@code 0} disables preparing ahead.
+     */
+    private int pipelineDepth = 2;
+
+    /**
+     * Lock component by PostgreSQL advisory lock while it is migrated, so nodes started at the same time don't migrate it twice.
+     * Node waiting for a lock re-reads state of component and skips already applied migrations.
+     */
+    private boolean distributedLock = true;
+
+    /**
+     * Compare stored fingerprints of components and whole deployment to skip up to date components.
+     * Fingerprints are stored into {@code db_evolutions_fingerprints} table, delete records to force full check.
+     */
+    private boolean fingerprintCheck = true;
+
+    /**
+     * Evolution files larger than this size in bytes are streamed: up statements are not kept in memory,
+     * they are read from the resource and sent to database while lexed, history keeps checksum and resource instead of them.
+     */
+    private long streamingThreshold = 16L * 1024 * 1024;
+
+    /**
+     * Load components and chunked evolutions only from registry generated by {@code EvolutionProcessor} without classpath scanning,
+     * for example in GraalVM native image. All modules with evolutions must be compiled with the processor, missing registry is an error.
+     * By default classpath is scanned and registry is merged with found classes.
+     */
+    private boolean registryOnly;
+
+    /**
+     * Max count of statements sent to database in one JDBC batch.
+     */
+    private int batchSize = 1000;
+
+    /**
+     * Max count of tenant schemas migrated at the same time by {@link TenantMigrationService}.
+     * Every tenant holds connections as a single migration run, so pool should fit {@code tenantParallelism * parallelism} connections.
+     */
+    private int tenantParallelism = 4;
+
+    /**
+     * Schemas appended to search path of tenant schema by {@link TenantMigrationService}, so evolutions can use extensions
+     * and shared objects of them. Tenant schema is the first one of search path, tables without schema are created in it.
+     * Empty value leaves tenant schema only.
+     */
+    private String tenantSearchPath = "public";
+
+    /**
+     * Max count of shards migrated at the same time by {@link ShardedMigrationService}.
+     */
+    private int shardParallelism = 4;
+
+    /**
+     * Don't start other tenants or shards after a failure, by default failure of one doesn't stop others.
+     * Already started migrations are completed, not started ones are reported as skipped.
+     */
+    private boolean failFast;
+
+    /**
+     * Listeners of migration progress, JFR events are emitted regardless of them when runtime supports JFR.
+     */
+    private List<MigrationListener> listeners = new ArrayList<>();
+
+    /**
+     * Emit events of every statement: statements are executed one by one instead of JDBC batches,
+     * so duration and row count of each statement are known at the cost of a round trip per statement.
+     */
+    private boolean statementEvents;
+
+    /**
+     * Database with history of the same evolutions applied before (for example staging), their durations estimate
+     * pending migrations and remaining time of migration. Remaining time is extrapolated from elapsed one when it is not set.
+     */
+    private DataSource durationSource;
+
+    /**
+     * Lock timeout of up statements in milliseconds, {@code 0} uses timeout of database.
+     * Statement waiting for a lock of a busy table gives up instead of queueing all other queries of the table behind itself.
+     * Evolution overrides it by {@code # --- !Ups lock_timeout=5s} directive.
+     */
+    private long lockTimeout;
+
+    /**
+     * Statement timeout of up statements in milliseconds, {@code 0} uses timeout of database.
+     * Evolution overrides it by {@code # --- !Ups statement_timeout=10min} directive.
+     */
+    private long statementTimeout;
+
+    /**
+     * First delay in milliseconds before retry of evolution failed by lock or statement timeout, every next delay is doubled with jitter.
+     */
+    private long retryBackoff = 500;
+
+    /**
+     * Max total delay in milliseconds between retries of one evolution failed by lock or statement timeout, {@code 0} disables retries.
+     * Transactional evolution is retried from its first statement, non-transactional evolution from the failed statement
+     * and chunked evolution from the failed chunk. Sessions holding locks of tables used by failed statements are logged.
+     * Transactional evolution is not retried when transaction already holds work of previous evolutions
+     * ({@link TransactionMode#COMPONENT} and {@link TransactionMode#PLAN} modes), their locks would be held during backoff.
+     */
+    private long retryBudget = 60_000;
+
+}
@@ -0,0 +1,57 @@
+package ru.finex.evolution;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Estimate of pending migrations by durations of the same evolutions applied before, see {@link MigrationConfig#getDurationSource()}.
+ * Rollback of changed evolutions is not estimated.
+ * @author m0nster.mind
+ */
+@Data
+public class MigrationEstimate {
+
+    /**
+     * Pending versions ordered by component dependencies and version.
+     */
+    private final List<Version> versions;
+
+    /**
+     * Estimated duration of pending versions in nanoseconds, versions without known duration are estimated by average duration of known ones.
+     * {@code -1} if there are pending versions but no one of them has known duration.
+     */
+    private final long durationNanos;
+
+    /**
+     * Count of pending versions without known duration.
+     * @return count of versions
+     */
+    public int getUnknownVersions() {
+        int count = 0;
+        for (Version version : versions) {
+            if (version.getDurationNanos() < 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Pending version of component.
+     */
+    @Data
+    public static class Version {
+
+        private final String component;
+        private final int version;
+        private final String name;
+
+        /**
+         * Duration of the same evolution applied before, {@code -1} if it is unknown.
+         */
+        private final long durationNanos;
+
+    }
+
+}
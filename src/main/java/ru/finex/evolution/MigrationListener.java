@@ -0,0 +1,78 @@
+package ru.finex.evolution;
+
+/**
+ * Слушатель процесса миграции, регистрируется через {@link MigrationConfig#getListeners()}.
+ * События компонента, версии и запроса вызываются в потоке, который мигрирует компонент.
+ * Длительности в наносекундах, количество строк {@code -1} если оно неизвестно, ошибка {@code null} при успехе.
+ * Ошибки слушателя логируются и не прерывают миграцию.
+ * @author m0nster.mind
+ */
+public interface MigrationListener {
+
+    /**
+     * Начало миграции компонента.
+     * @param component компонент
+     */
+    default void componentStarted(String component) {
+    }
+
+    /**
+     * Завершение миграции компонента.
+     * @param component компонент
+     * @param durationNanos длительность
+     * @param failure ошибка
+     */
+    default void componentCompleted(String component, long durationNanos, Throwable failure) {
+    }
+
+    /**
+     * Начало применения версии компонента.
+     * @param component компонент
+     * @param version версия
+     */
+    default void versionStarted(String component, int version) {
+    }
+
+    /**
+     * Завершение применения версии компонента.
+     * @param component компонент
+     * @param version версия
+     * @param durationNanos длительность
+     * @param rowCount количество измененных строк
+     * @param failure ошибка
+     */
+    default void versionCompleted(String component, int version, long durationNanos, long rowCount, Throwable failure) {
+    }
+
+    /**
+     * Начало выполнения запроса, вызывается если включен {@link MigrationConfig#isStatementEvents()}.
+     * @param component компонент
+     * @param version версия
+     * @param index номер запроса в версии
+     * @param statement запрос
+     */
+    default void statementStarted(String component, int version, int index, String statement) {
+    }
+
+    /**
+     * Завершение выполнения запроса, вызывается если включен {@link MigrationConfig#isStatementEvents()}.
+     * @param component компонент
+     * @param version версия
+     * @param index номер запроса в версии
+     * @param statement запрос
+     * @param durationNanos длительность
+     * @param rowCount количество измененных строк
+     * @param failure ошибка
+     */
+    default void statementCompleted(String component, int version, int index, String statement, long durationNanos, long rowCount,
+        Throwable failure) {
+    }
+
+    /**
+     * Прогресс миграции, вызывается после применения каждой версии.
+     * @param progress прогресс
+     */
+    default void progress(MigrationProgress progress) {
+    }
+
+}
@@ -0,0 +1,203 @@
+package ru.finex.evolution;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dry-run plan of migration: rollback of changed evolutions and pending evolutions, nothing is applied while it is built.
+ * DML statements are explained in rolled back transactions, lock taken by DDL statement is classified by its syntax.
+ * Only DDL which changes system catalog alone is executed in the transaction of plan, other statements are never executed.
+ * Rollback steps are executed only by migration with {@code autoRollback}, otherwise migration fails on changed evolution.
+ * @author m0nster.mind
+ */
+@Data
+public class MigrationPlan {
+
+    /**
+     * Steps in order of execution.
+     */
+    private final List<Step> steps;
+
+    /**
+     * Statements which lock tables against writes, see {@link Lock#isBlockingWrites()}.
+     * @return statements
+     */
+    public List<Statement> getBlockingStatements() {
+        List<Statement> result = new ArrayList<>();
+        for (Step step : steps) {
+            if (step.getStatements() == null) {
+                continue;
+            }
+
+            for (Statement statement : step.getStatements()) {
+                if (statement.getLock() != null && statement.getLock().isBlockingWrites()) {
+                    result.add(statement);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Statements which are not recognized, their locks are unknown.
+     * @return statements
+     */
+    public List<Statement> getUnknownStatements() {
+        List<Statement> result = new ArrayList<>();
+        for (Step step : steps) {
+            if (step.getStatements() == null) {
+                continue;
+            }
+
+            for (Statement statement : step.getStatements()) {
+                if (statement.getKind() == Kind.UNKNOWN) {
+                    result.add(statement);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Action of step.
+     */
+    public enum Action {
+        /**
+         * Apply pending version.
+         */
+        APPLY,
+        /**
+         * Rollback applied version by its down queries.
+         */
+        ROLLBACK
+    }
+
+    /**
+     * Kind of statement, it defines how statement is analyzed by plan.
+     */
+    public enum Kind {
+        /**
+         * Insert, update, delete, merge or select, it is explained and not executed.
+         */
+        DML,
+        /**
+         * DDL which changes only system catalog without scan or rewrite of table data, it is executed in transaction of plan,
+         * so the next statements are explained against changed schema.
+         */
+        CATALOG,
+        /**
+         * Other recognized statement, it is not executed.
+         */
+        DDL,
+        /**
+         * Statement is not recognized (for example {@code do} block or {@code call}), its lock is unknown and it is not executed.
+         */
+        UNKNOWN
+    }
+
+    /**
+     * Table lock modes of PostgreSQL ordered by strength.
+     */
+    public enum Lock {
+        ACCESS_SHARE,
+        ROW_SHARE,
+        ROW_EXCLUSIVE,
+        SHARE_UPDATE_EXCLUSIVE,
+        SHARE,
+        SHARE_ROW_EXCLUSIVE,
+        EXCLUSIVE,
+        ACCESS_EXCLUSIVE;
+
+        /**
+         * Lock conflicts with {@code insert}, {@code update} and {@code delete}.
+         * @return true if lock blocks writes
+         */
+        public boolean isBlockingWrites() {
+            return compareTo(SHARE) >= 0;
+        }
+
+        /**
+         * Lock conflicts with {@code select}.
+         * @return true if lock blocks reads
+         */
+        public boolean isBlockingReads() {
+            return this == ACCESS_EXCLUSIVE;
+        }
+    }
+
+    /**
+     * Version of component to apply or to rollback.
+     */
+    @Data
+    public static class Step {
+
+        private final String component;
+        private final int version;
+        private final String name;
+        private final Action action;
+
+        /**
+         * Duration of the same evolution applied before, {@code -1} if it is unknown, see {@link MigrationEstimate}.
+         */
+        private final long durationNanos;
+
+        /**
+         * Statements of step, null if evolution is streamed or chunked.
+         */
+        private final List<Statement> statements;
+
+    }
+
+    /**
+     * Analyzed statement.
+     */
+    @Data
+    public static class Statement {
+
+        private final String sql;
+
+        /**
+         * Lock taken by statement on its table, null if statement doesn't lock an existing table or it is not recognized.
+         */
+        private final Lock lock;
+
+        /**
+         * Table locked by statement, null if it is unknown.
+         */
+        private final String table;
+
+        private final Kind kind;
+
+        /**
+         * Statement is executed in transaction of plan, only {@link Kind#CATALOG} statements are executed.
+         */
+        private boolean executed;
+
+        /**
+         * Total cost estimated by planner, null if statement is not explained.
+         */
+        private Double cost;
+
+        /**
+         * Count of rows estimated by planner, null if statement is not explained.
+         */
+        private Long rows;
+
+        /**
+         * Error of explain, for example table is created by previous statement of plan.
+         */
+        private String explainError;
+
+        /**
+         * Statement is DML, only DML statements are explained.
+         * @return true if statement is DML
+         */
+        public boolean isDml() {
+            return kind == Kind.DML;
+        }
+
+    }
+
+}
@@ -0,0 +1,28 @@
+package ru.finex.evolution;
+
+import lombok.Data;
+
+/**
+ * Progress of migration run, reported to {@link MigrationListener#progress(MigrationProgress)} after every applied version.
+ * Progress is weighted by durations of {@link MigrationEstimate}, when no duration is known every version has the same weight
+ * and remaining time is extrapolated from elapsed one.
+ * @author m0nster.mind
+ */
+@Data
+public class MigrationProgress {
+
+    private final int completedVersions;
+    private final int totalVersions;
+    private final long elapsedNanos;
+
+    /**
+     * Estimated remaining time in nanoseconds.
+     */
+    private final long remainingNanos;
+
+    /**
+     * Completed part of migration from {@code 0} to {@code 100}.
+     */
+    private final double percent;
+
+}
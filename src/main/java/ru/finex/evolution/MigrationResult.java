@@ -0,0 +1,38 @@
+package ru.finex.evolution;
+
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of migration of several targets (tenant schemas or shards), targets are ordered as requested.
+ * @author m0nster.mind
+ */
+@Data
+public class MigrationResult {
+
+    /**
+     * Successfully migrated targets.
+     */
+    private final List<String> migrated;
+
+    /**
+     * Failures of targets which are not migrated.
+     */
+    private final Map<String, RuntimeException> failures;
+
+    /**
+     * Targets which are not started because of a failure, see {@link MigrationConfig#isFailFast()}.
+     */
+    private final List<String> skipped;
+
+    /**
+     * All targets are migrated.
+     * @return true if there is no failed or skipped targets
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty() && skipped.isEmpty();
+    }
+
+}
@@ -1,5 +1,7 @@
 package ru.finex.evolution;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * @author m0nster.mind
  */
@@ -11,6 +13,21 @@ public interface MigrationService {
      */
     void autoMigration(boolean autoRollback);
 
+    /**
+     * Автоматическая миграция зарегистрированных компонентов, отложенные миграции ({@code # --- !Deferred})
+     * и следующие за ними версии компонента применяются в фоне.
+     * Метод возвращает управление после применения остальных миграций.
+     * @param autoRollback автоматический роллбек примененных миграций, если они изменились
+     * @return завершение отложенных миграций
+     */
+    CompletableFuture<Void> autoMigrationDeferred(boolean autoRollback);
+
+    /**
+     * Состояние последней фоновой миграции.
+     * @return завершение отложенных миграций, завершенный результат если фоновых миграций не было
+     */
+    CompletableFuture<Void> getDeferredMigration();
+
     /**
      * Миграция определенного компонента и всех его зависимостей.
      * @param component компонент
@@ -18,4 +35,28 @@ public interface MigrationService {
      */
     void migrate(String component, boolean autoRollback);
 
+    /**
+     * Оценка длительности ожидающих миграций всех компонентов без их применения.
+     * Длительности берутся из истории тех же миграций в {@link MigrationConfig#getDurationSource()}.
+     * @return оценка миграций
+     */
+    MigrationEstimate estimate();
+
+    /**
+     * План миграции определенного компонента и всех его зависимостей без ее применения:
+     * откат измененных миграций и ожидающие миграции, DML запросы оцениваются через {@code explain} в откатываемой транзакции,
+     * для DDL запросов определяется уровень блокировки таблицы.
+     * Выполняются только DDL запросы, изменяющие лишь системный каталог, остальные запросы не выполняются.
+     * @param component компонент
+     * @return план миграции
+     */
+    MigrationPlan plan(String component);
+
+    /**
+     * План миграции всех зарегистрированных компонентов без ее применения.
+     * @return план миграции
+     * @see #plan(String)
+     */
+    MigrationPlan planAll();
+
 }
@@ -0,0 +1,55 @@
+package ru.finex.evolution;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.sql.DataSource;
+
+/**
+ * Миграция компонентов в несколько баз данных (шардов) с одинаковой схемой, каждый шард содержит свою историю миграций.
+ * Эволюции разбираются один раз, шарды мигрируются параллельно.
+ * @author m0nster.mind
+ */
+public interface ShardedMigrationService {
+
+    /**
+     * Автоматическая миграция зарегистрированных компонентов в шарды.
+     * @param shards шарды по именам
+     * @param autoRollback автоматический роллбек примененных миграций, если они изменились
+     * @return результат миграции шардов
+     */
+    MigrationResult autoMigration(Map<String, DataSource> shards, boolean autoRollback);
+
+    /**
+     * Автоматическая миграция зарегистрированных компонентов в шарды, шарды именуются по индексу ({@code shard-0}, {@code shard-1}...).
+     * @param shards шарды
+     * @param autoRollback автоматический роллбек примененных миграций, если они изменились
+     * @return результат миграции шардов
+     */
+    default MigrationResult autoMigration(List<DataSource> shards, boolean autoRollback) {
+        return autoMigration(nameShards(shards), autoRollback);
+    }
+
+    /**
+     * Миграция определенного компонента и всех его зависимостей в шарды.
+     * @param shards шарды по именам
+     * @param component компонент
+     * @param autoRollback автоматический роллбек примененных миграций, если они изменились
+     * @return результат миграции шардов
+     */
+    MigrationResult migrate(Map<String, DataSource> shards, String component, boolean autoRollback);
+
+    /**
+     * Имена шардов по индексу.
+     * @param shards шарды
+     * @return шарды по именам
+     */
+    static Map<String, DataSource> nameShards(List<DataSource> shards) {
+        Map<String, DataSource> result = new LinkedHashMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            result.put("shard-" + i, shards.get(i));
+        }
+        return result;
+    }
+
+}
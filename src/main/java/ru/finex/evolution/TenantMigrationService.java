@@ -0,0 +1,39 @@
+package ru.finex.evolution;
+
+import java.util.Collection;
+
+/**
+ * Миграция компонентов в схемы тенантов, каждая схема содержит свою историю миграций.
+ * Эволюции разбираются один раз, схемы мигрируются параллельно, ошибка миграции схемы не прерывает миграцию остальных.
+ * @author m0nster.mind
+ */
+public interface TenantMigrationService {
+
+    /**
+     * Автоматическая миграция зарегистрированных компонентов в схемы тенантов.
+     * @param schemas схемы тенантов
+     * @param autoRollback автоматический роллбек примененных миграций, если они изменились
+     * @return результат миграции схем
+     */
+    MigrationResult autoMigration(Collection<String> schemas, boolean autoRollback);
+
+    /**
+     * Автоматическая миграция зарегистрированных компонентов в схемы тенантов.
+     * @param provider источник схем тенантов
+     * @param autoRollback автоматический роллбек примененных миграций, если они изменились
+     * @return результат миграции схем
+     */
+    default MigrationResult autoMigration(TenantProvider provider, boolean autoRollback) {
+        return autoMigration(provider.getSchemas(), autoRollback);
+    }
+
+    /**
+     * Миграция определенного компонента и всех его зависимостей в схемы тенантов.
+     * @param schemas схемы тенантов
+     * @param component компонент
+     * @param autoRollback автоматический роллбек примененных миграций, если они изменились
+     * @return результат миграции схем
+     */
+    MigrationResult migrate(Collection<String> schemas, String component, boolean autoRollback);
+
+}
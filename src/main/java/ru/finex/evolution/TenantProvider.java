@@ -0,0 +1,17 @@
+package ru.finex.evolution;
+
+import java.util.Collection;
+
+/**
+ * Источник схем тенантов для {@link TenantMigrationService}.
+ * @author m0nster.mind
+ */
+public interface TenantProvider {
+
+    /**
+     * Схемы тенантов, схемы должны существовать.
+     * @return имена схем
+     */
+    Collection<String> getSchemas();
+
+}
@@ -0,0 +1,20 @@
+package ru.finex.evolution;
+
+/**
+ * Transaction boundaries of migration run.
+ * @author m0nster.mind
+ */
+public enum TransactionMode {
+    /**
+     * Every version of component is applied in own transaction.
+     */
+    VERSION,
+    /**
+     * All versions of component are applied in one transaction.
+     */
+    COMPONENT,
+    /**
+     * All components of the run are applied in one transaction, components are migrated serially.
+     */
+    PLAN
+}
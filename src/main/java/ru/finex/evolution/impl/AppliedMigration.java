@@ -0,0 +1,24 @@
+package ru.finex.evolution.impl;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Migration applied to database, record of migration history.
+ * @author m0nster.mind
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AppliedMigration {
+
+    private String component;
+    private int version;
+    private String checksum;
+    /**
+     * Duration of migration in milliseconds, {@code -1} if it is unknown.
+     */
+    private long durationMillis = -1;
+
+}
@@ -0,0 +1,18 @@
+package ru.finex.evolution.impl;
+
+import lombok.Data;
+import ru.finex.evolution.ChunkedEvolution;
+import ru.finex.evolution.ChunkedMigration;
+
+/**
+ * Chunked migration registered by {@link ChunkedEvolution} with its settings.
+ * @author m0nster.mind
+ */
+@Data
+public class ChunkedTask {
+
+    private final ChunkedMigration migration;
+    private final long chunkSize;
+    private final long throttle;
+
+}
@@ -0,0 +1,120 @@
+package ru.finex.evolution.impl;
+
+import lombok.experimental.UtilityClass;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import ru.finex.evolution.processor.EvolutionProcessor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Registry of components generated at compile time by {@link EvolutionProcessor}.
+ * @author m0nster.mind
+ */
+@UtilityClass
+public class EvolutionRegistry {
+
+    /**
+     * Load components from all registries available in class loader.
+     * @param classLoader class loader
+     * @return dependencies by component, empty if there is no registries
+     */
+    public static Map<String, Set<String>> load(ClassLoader classLoader) {
+        Map<String, Set<String>> result = new LinkedHashMap<>();
+        for (String line : readLines(classLoader, EvolutionProcessor.REGISTRY_RESOURCE)) {
+            parseLine(result, line);
+        }
+
+        return result;
+    }
+
+    /**
+     * Check that class loader has a registry.
+     * @param classLoader class loader
+     * @return true if registry is available
+     */
+    public static boolean isPresent(ClassLoader classLoader) {
+        try {
+            return classLoader.getResources(EvolutionProcessor.REGISTRY_RESOURCE).hasMoreElements();
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to read evolution registry", e);
+        }
+    }
+
+    /**
+     * Check that class loader has a registry, it is required when classpath is not scanned.
+     * @param classLoader class loader
+     * @throws IllegalStateException if registry is not available
+     */
+    public static void requirePresent(ClassLoader classLoader) {
+        if (!isPresent(classLoader)) {
+            throw new IllegalStateException(String.format(
+                "Evolution registry %s is not found: compile evolutions with EvolutionProcessor or disable registryOnly.",
+                EvolutionProcessor.REGISTRY_RESOURCE
+            ));
+        }
+    }
+
+    /**
+     * Load names of chunked evolution classes from all registries available in class loader.
+     * @param classLoader class loader
+     * @return binary class names, empty if there is no registries
+     */
+    public static Set<String> loadChunked(ClassLoader classLoader) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String line : readLines(classLoader, EvolutionProcessor.CHUNKED_RESOURCE)) {
+            if (!line.isEmpty() && line.charAt(0) != '#') {
+                result.add(line);
+            }
+        }
+
+        return result;
+    }
+
+    private static List<String> readLines(ClassLoader classLoader, String resource) {
+        List<String> result = new ArrayList<>();
+        try {
+            Enumeration<URL> registries = classLoader.getResources(resource);
+            while (registries.hasMoreElements()) {
+                URL registry = registries.nextElement();
+                try (InputStream input = registry.openStream()) {
+                    for (String line : IOUtils.readLines(input, StandardCharsets.UTF_8)) {
+                        result.add(line.trim());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to read evolution registry", e);
+        }
+
+        return result;
+    }
+
+    private static void parseLine(Map<String, Set<String>> result, String line) {
+        if (line.isEmpty() || line.charAt(0) == '#') {
+            return;
+        }
+
+        int separator = line.indexOf('=');
+        String component = separator == -1 ? line : line.substring(0, separator);
+        Set<String> dependencies = result.computeIfAbsent(component.trim(), e -> new LinkedHashSet<>());
+        if (separator != -1) {
+            for (String dependency : StringUtils.split(line.substring(separator + 1), ',')) {
+                if (StringUtils.isNotBlank(dependency)) {
+                    dependencies.add(dependency.trim());
+                }
+            }
+        }
+    }
+
+}
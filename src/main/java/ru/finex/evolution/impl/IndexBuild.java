@@ -0,0 +1,93 @@
+package ru.finex.evolution.impl;
+
+import lombok.Data;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Index built concurrently by statement: failed {@code create index concurrently} leaves invalid index,
+ * failed {@code reindex concurrently} leaves invalid {@code _ccnew} copies of rebuilt indexes.
+ * Names are unquoted: quoted identifiers keep their case, other identifiers are lower cased.
+ * @author m0nster.mind
+ */
+@Data
+public class IndexBuild {
+
+    private static final String IDENTIFIER = "(?:\"[^\"]+\"|[\\w$]+)";
+    private static final String NAME = IDENTIFIER + "(?:\\." + IDENTIFIER + ")?";
+    private static final Pattern CREATE_INDEX = Pattern.compile("create\\s+(?:unique\\s+)?index\\s+concurrently\\s+(?:if\\s+not\\s+exists\\s+)?"
+        + "(?<index>" + IDENTIFIER + ")\\s+on\\s+(?:only\\s+)?(?<table>" + NAME + ")", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern REINDEX = Pattern.compile("reindex\\s+(?:\\(.*?\\)\\s*)?(?<kind>index|table)\\s+concurrently\\s+(?<name>" + NAME + ")",
+        Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern COPY_SUFFIX = Pattern.compile("_ccnew\\d*");
+
+    /**
+     * Schema of index, empty if it is resolved by search path.
+     */
+    private final String schema;
+
+    /**
+     * Table of index, null if it is unknown.
+     */
+    private final String table;
+
+    /**
+     * Name of built index, null if all indexes of table are rebuilt.
+     */
+    private final String index;
+
+    /**
+     * Index is rebuilt into {@code _ccnew} copy.
+     */
+    private final boolean reindex;
+
+    /**
+     * Recognize statement which builds index concurrently.
+     * Index of {@code create index concurrently} without name is not recognized: its generated name is unknown.
+     * @param sql statement
+     * @return index build or null if statement doesn't build named index concurrently
+     */
+    public static IndexBuild parse(String sql) {
+        String statement = SqlLocks.stripLeadingComments(sql);
+        Matcher create = CREATE_INDEX.matcher(statement);
+        if (create.lookingAt()) {
+            String[] table = SqlLocks.unquote(create.group("table"));
+            return new IndexBuild(table[0], table[1], SqlLocks.unquote(create.group("index"))[1], false);
+        }
+
+        Matcher reindex = REINDEX.matcher(statement);
+        if (reindex.lookingAt()) {
+            String[] name = SqlLocks.unquote(reindex.group("name"));
+            return reindex.group("kind").equalsIgnoreCase("index")
+                ? new IndexBuild(name[0], null, name[1], true)
+                : new IndexBuild(name[0], name[1], null, true);
+        }
+
+        return null;
+    }
+
+    /**
+     * Check that invalid index is left by this build.
+     * @param indexName name of invalid index
+     * @param tableName name of its table
+     * @return true if index is built by statement
+     */
+    public boolean matches(String indexName, String tableName) {
+        if (table != null && !table.equals(tableName)) {
+            return false;
+        }
+
+        if (!reindex) {
+            return index.equals(indexName);
+        }
+
+        if (index == null) {
+            int suffix = indexName.lastIndexOf("_ccnew");
+            return suffix > 0 && COPY_SUFFIX.matcher(indexName.substring(suffix)).matches();
+        }
+
+        return indexName.startsWith(index) && COPY_SUFFIX.matcher(indexName.substring(index.length())).matches();
+    }
+
+}
@@ -0,0 +1,148 @@
+package ru.finex.evolution.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import ru.finex.evolution.MigrationListener;
+
+/**
+ * Emits JDK Flight Recorder events of components, versions and statements.
+ * Event is begun by start callback and committed by completion callback of the same thread.
+ * @author m0nster.mind
+ */
+public class JfrMigrationListener implements MigrationListener {
+
+    private static final int MAX_STATEMENT_LENGTH = 4096;
+
+    private final ThreadLocal<ComponentEvent> componentEvent = new ThreadLocal<>();
+    private final ThreadLocal<VersionEvent> versionEvent = new ThreadLocal<>();
+    private final ThreadLocal<StatementEvent> statementEvent = new ThreadLocal<>();
+
+    @Override
+    public void componentStarted(String component) {
+        ComponentEvent event = new ComponentEvent();
+        event.begin();
+        componentEvent.set(event);
+    }
+
+    @Override
+    public void componentCompleted(String component, long durationNanos, Throwable failure) {
+        ComponentEvent event = componentEvent.get();
+        componentEvent.remove();
+        if (event != null && event.shouldCommit()) {
+            event.component = component;
+            event.failure = failureOf(failure);
+            event.commit();
+        }
+    }
+
+    @Override
+    public void versionStarted(String component, int version) {
+        VersionEvent event = new VersionEvent();
+        event.begin();
+        versionEvent.set(event);
+    }
+
+    @Override
+    public void versionCompleted(String component, int version, long durationNanos, long rowCount, Throwable failure) {
+        VersionEvent event = versionEvent.get();
+        versionEvent.remove();
+        if (event != null && event.shouldCommit()) {
+            event.component = component;
+            event.version = version;
+            event.rowCount = rowCount;
+            event.failure = failureOf(failure);
+            event.commit();
+        }
+    }
+
+    @Override
+    public void statementStarted(String component, int version, int index, String statement) {
+        StatementEvent event = new StatementEvent();
+        event.begin();
+        statementEvent.set(event);
+    }
+
+    @Override
+    public void statementCompleted(String component, int version, int index, String statement, long durationNanos, long rowCount,
+        Throwable failure) {
+        StatementEvent event = statementEvent.get();
+        statementEvent.remove();
+        if (event != null && event.shouldCommit()) {
+            event.component = component;
+            event.version = version;
+            event.index = index;
+            event.statement = statement.length() > MAX_STATEMENT_LENGTH ? statement.substring(0, MAX_STATEMENT_LENGTH) : statement;
+            event.rowCount = rowCount;
+            event.failure = failureOf(failure);
+            event.commit();
+        }
+    }
+
+    private static String failureOf(Throwable failure) {
+        return failure == null ? null : failure.toString();
+    }
+
+    @Name("ru.finex.evolution.Component")
+    @Label("Evolution Component")
+    @Category({ "FinEx", "Evolution" })
+    @Description("Migration of component")
+    static class ComponentEvent extends Event {
+
+        @Label("Component")
+        String component;
+
+        @Label("Failure")
+        String failure;
+
+    }
+
+    @Name("ru.finex.evolution.Version")
+    @Label("Evolution Version")
+    @Category({ "FinEx", "Evolution" })
+    @Description("Migration of component version")
+    static class VersionEvent extends Event {
+
+        @Label("Component")
+        String component;
+
+        @Label("Version")
+        int version;
+
+        @Label("Row Count")
+        long rowCount;
+
+        @Label("Failure")
+        String failure;
+
+    }
+
+    @Name("ru.finex.evolution.Statement")
+    @Label("Evolution Statement")
+    @Category({ "FinEx", "Evolution" })
+    @Description("Statement of component version")
+    static class StatementEvent extends Event {
+
+        @Label("Component")
+        String component;
+
+        @Label("Version")
+        int version;
+
+        @Label("Index")
+        int index;
+
+        @Label("Statement")
+        String statement;
+
+        @Label("Row Count")
+        long rowCount;
+
+        @Label("Failure")
+        String failure;
+
+    }
+
+}
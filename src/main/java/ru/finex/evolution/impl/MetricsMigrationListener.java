@@ -0,0 +1,77 @@
+package ru.finex.evolution.impl;
+
+import ru.finex.evolution.MigrationListener;
+
+/**
+ * Listener which records timers and row counters into a metrics registry, for example Micrometer:
+ * <pre>{@code
+ * new MetricsMigrationListener(new MetricsMigrationListener.Recorder() {
+ *     public void timer(String name, long durationNanos, String... tags) {
+ *         registry.timer(name, tags).record(durationNanos, TimeUnit.NANOSECONDS);
+ *     }
+ *
+ *     public void counter(String name, long amount, String... tags) {
+ *         registry.counter(name, tags).increment(amount);
+ *     }
+ * });
+ * }</pre>
+ * Timers {@code evolution.component}, {@code evolution.version} and {@code evolution.statement} are tagged by
+ * {@code component} and {@code outcome}, counter {@code evolution.rows} is tagged by {@code component}.
+ * Version and statement are not tags: they are unbounded.
+ * @author m0nster.mind
+ */
+public class MetricsMigrationListener implements MigrationListener {
+
+    private final Recorder recorder;
+
+    public MetricsMigrationListener(Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    @Override
+    public void componentCompleted(String component, long durationNanos, Throwable failure) {
+        recorder.timer("evolution.component", durationNanos, "component", component, "outcome", outcome(failure));
+    }
+
+    @Override
+    public void versionCompleted(String component, int version, long durationNanos, long rowCount, Throwable failure) {
+        recorder.timer("evolution.version", durationNanos, "component", component, "outcome", outcome(failure));
+        if (rowCount > 0) {
+            recorder.counter("evolution.rows", rowCount, "component", component);
+        }
+    }
+
+    @Override
+    public void statementCompleted(String component, int version, int index, String statement, long durationNanos, long rowCount,
+        Throwable failure) {
+        recorder.timer("evolution.statement", durationNanos, "component", component, "outcome", outcome(failure));
+    }
+
+    private static String outcome(Throwable failure) {
+        return failure == null ? "success" : "failure";
+    }
+
+    /**
+     * Metrics registry.
+     */
+    public interface Recorder {
+
+        /**
+         * Record duration into timer.
+         * @param name timer name
+         * @param durationNanos duration
+         * @param tags tag names and values
+         */
+        void timer(String name, long durationNanos, String... tags);
+
+        /**
+         * Increment counter.
+         * @param name counter name
+         * @param amount amount
+         * @param tags tag names and values
+         */
+        void counter(String name, long amount, String... tags);
+
+    }
+
+}
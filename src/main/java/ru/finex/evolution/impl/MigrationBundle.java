@@ -0,0 +1,295 @@
+package ru.finex.evolution.impl;
+
+import lombok.experimental.UtilityClass;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Binary index of parsed and checksummed migrations, built by {@link MigrationBundleCompiler}.
+ * <p>
+ * Layout (big-endian): magic, format version, migrations count, metadata length, metadata, statements.
+ * Metadata of every migration: component, version, name, checksum, resources, flags,
+ * lock and statement timeouts, up/down statements count and offset with length of every statement. Statements are stored as UTF-8 and decoded on access.
+ * @author m0nster.mind
+ */
+@UtilityClass
+public class MigrationBundle {
+
+    public static final int MAGIC = 0x46584556;
+    public static final int FORMAT_VERSION = 1;
+    public static final int FLAG_DEFERRED = 1;
+    public static final int FLAG_NONTRANSACTIONAL = 2;
+
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Write migrations into bundle.
+     * @param migrations migrations grouped by version with calculated checksums
+     * @param output output stream
+     * @throws IOException write error
+     */
+    public static void write(Collection<MigrationData> migrations, OutputStream output) throws IOException {
+        ByteArrayOutputStream metadataBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream statementBytes = new ByteArrayOutputStream();
+        DataOutputStream metadata = new DataOutputStream(metadataBytes);
+        for (MigrationData data : migrations) {
+            writeString(metadata, data.getComponent());
+            metadata.writeInt(data.getVersion());
+            writeString(metadata, data.getName());
+            writeString(metadata, data.getChecksum());
+            metadata.writeInt(data.getResources().size());
+            for (String resource : data.getResources()) {
+                writeString(metadata, resource);
+            }
+            metadata.writeInt((data.isDeferred() ? FLAG_DEFERRED : 0) | (data.isNontransactional() ? FLAG_NONTRANSACTIONAL : 0));
+            writeString(metadata, data.getLockTimeout());
+            writeString(metadata, data.getStatementTimeout());
+
+            metadata.writeInt(data.getUpQueries().size());
+            metadata.writeInt(data.getDownQueries().size());
+            writeStatements(metadata, statementBytes, data.getUpQueries());
+            writeStatements(metadata, statementBytes, data.getDownQueries());
+        }
+        metadata.flush();
+
+        DataOutputStream header = new DataOutputStream(output);
+        header.writeInt(MAGIC);
+        header.writeInt(FORMAT_VERSION);
+        header.writeInt(migrations.size());
+        header.writeInt(metadataBytes.size());
+        header.flush();
+        metadataBytes.writeTo(output);
+        statementBytes.writeTo(output);
+        output.flush();
+    }
+
+    private static void writeStatements(DataOutputStream metadata, ByteArrayOutputStream statements, List<String> queries)
+        throws IOException {
+        for (String query : queries) {
+            byte[] bytes = query.getBytes(StandardCharsets.UTF_8);
+            metadata.writeInt(statements.size());
+            metadata.writeInt(bytes.length);
+            statements.write(bytes);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Read migrations from bundle.
+     * Statements of returned migrations are not decoded until accessed and refer to the buffer.
+     * @param buffer bundle
+     * @return migrations
+     */
+    public static List<MigrationData> read(ByteBuffer buffer) {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IllegalStateException("Invalid evolution bundle: unknown magic number.");
+        }
+
+        int formatVersion = buffer.getInt(4);
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IllegalStateException("Unsupported evolution bundle version: " + formatVersion);
+        }
+
+        int count = buffer.getInt(8);
+        int statementsOffset = HEADER_SIZE + buffer.getInt(12);
+        Reader reader = new Reader(buffer, HEADER_SIZE);
+        List<MigrationData> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            MigrationData data = new MigrationData();
+            data.setComponent(reader.readString());
+            data.setVersion(reader.readInt());
+            data.setName(reader.readString());
+            data.setChecksum(reader.readString());
+
+            int resourcesCount = reader.readInt();
+            List<String> resources = new ArrayList<>(resourcesCount);
+            for (int j = 0; j < resourcesCount; j++) {
+                resources.add(reader.readString());
+            }
+            data.setResources(resources);
+
+            int flags = reader.readInt();
+            data.setDeferred((flags & FLAG_DEFERRED) != 0);
+            data.setNontransactional((flags & FLAG_NONTRANSACTIONAL) != 0);
+            data.setLockTimeout(reader.readString());
+            data.setStatementTimeout(reader.readString());
+
+            int upCount = reader.readInt();
+            int downCount = reader.readInt();
+            data.setUpQueries(new BundleStatements(buffer, statementsOffset, reader.readInts(upCount * 2)));
+            data.setDownQueries(new BundleStatements(buffer, statementsOffset, reader.readInts(downCount * 2)));
+            result.add(data);
+        }
+
+        return result;
+    }
+
+    /**
+     * Load bundle, file bundle is memory-mapped, others are read into memory.
+     * Statements of bundle read into memory are released by {@link MigrationParser#releaseQueries(MigrationData)}, so the bundle is not retained.
+     * @param url bundle location
+     * @return bundle buffer
+     * @throws IOException read error
+     */
+    public static ByteBuffer load(URL url) throws IOException {
+        File file = toFile(url);
+        if (file != null) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        try (InputStream input = url.openStream()) {
+            return ByteBuffer.wrap(IOUtils.toByteArray(input));
+        }
+    }
+
+    /**
+     * Convert URL to a file.
+     * @param url URL
+     * @return file or null if URL is not a file
+     */
+    public static File toFile(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return new File(url.getPath());
+        }
+    }
+
+    /**
+     * Size of statements read from bundle, statements are not decoded.
+     * @param statements statements
+     * @return UTF-8 size of statements in bytes or -1 if statements are not read from bundle
+     */
+    public static long sizeOf(List<String> statements) {
+        if (!(statements instanceof BundleStatements)) {
+            return -1;
+        }
+
+        int[] bounds = ((BundleStatements) statements).bounds;
+        long size = 0;
+        for (int i = 1; i < bounds.length; i += 2) {
+            size += bounds[i];
+        }
+        return size;
+    }
+
+    /**
+     * Statements are decoded from memory-mapped bundle, they don't retain memory of heap.
+     * @param statements statements
+     * @return true if statements are read from memory-mapped bundle
+     */
+    public static boolean isMapped(List<String> statements) {
+        return statements instanceof BundleStatements && ((BundleStatements) statements).buffer.isDirect();
+    }
+
+    private static String decode(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        // cast to Buffer keeps binary compatibility with Java 8
+        ((Buffer) slice).limit(offset + length);
+        ((Buffer) slice).position(offset);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    private static final class Reader {
+
+        private final ByteBuffer buffer;
+        private int position;
+
+        private Reader(ByteBuffer buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        private int readInt() {
+            int value = buffer.getInt(position);
+            position += 4;
+            return value;
+        }
+
+        private int[] readInts(int count) {
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = readInt();
+            }
+            return values;
+        }
+
+        private String readString() {
+            int length = readInt();
+            if (length == -1) {
+                return null;
+            }
+
+            String value = decode(buffer, position, length);
+            position += length;
+            return value;
+        }
+
+    }
+
+    /**
+     * Statements of migration decoded from bundle on access.
+     */
+    private static final class BundleStatements extends AbstractList<String> implements RandomAccess {
+
+        private final ByteBuffer buffer;
+        private final int statementsOffset;
+        private final int[] bounds;
+
+        private BundleStatements(ByteBuffer buffer, int statementsOffset, int[] bounds) {
+            this.buffer = buffer;
+            this.statementsOffset = statementsOffset;
+            this.bounds = bounds;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+            }
+
+            return decode(buffer, statementsOffset + bounds[index * 2], bounds[index * 2 + 1]);
+        }
+
+        @Override
+        public int size() {
+            return bounds.length / 2;
+        }
+
+    }
+
+}
@@ -0,0 +1,88 @@
+package ru.finex.evolution.impl;
+
+import lombok.experimental.UtilityClass;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Build-time compiler of evolution bundle.
+ * Parses all evolutions of a resources directory and writes them into {@link MigrationConsts#BUNDLE_RESOURCE}.
+ * <p>
+ * Usage: {@code MigrationBundleCompiler <classes directory> [bundle file]},
+ * bundle file is {@code <classes directory>/META-INF/finex-evolution/evolutions.idx} by default.
+ * @author m0nster.mind
+ * @see MigrationBundle
+ */
+@UtilityClass
+public class MigrationBundleCompiler {
+
+    /**
+     * Compile evolution bundle.
+     * @param args classes directory and optional bundle file
+     * @throws IOException read or write error
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            throw new IllegalArgumentException("Usage: MigrationBundleCompiler <classes directory> [bundle file]");
+        }
+
+        Path root = Paths.get(args[0]);
+        Path bundle = args.length == 2 ? Paths.get(args[1]) : root.resolve(MigrationConsts.BUNDLE_RESOURCE);
+        compile(root, bundle);
+    }
+
+    /**
+     * Compile evolution bundle.
+     * @param root classes directory
+     * @param bundle bundle file
+     * @return count of bundled migrations
+     * @throws IOException read or write error
+     */
+    public static int compile(Path root, Path bundle) throws IOException {
+        List<String> resources;
+        try (Stream<Path> files = Files.walk(root)) {
+            resources = files.filter(Files::isRegularFile)
+                .filter(file -> MigrationParser.isMigration(file.getFileName().toString()))
+                .map(file -> root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/"))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+
+        List<MigrationData> migrations = MigrationExecutors.map(resources, resource -> read(root, resource),
+            Runtime.getRuntime().availableProcessors(), "evolution-compiler");
+        List<MigrationData> grouped = MigrationParser.group(migrations,
+            resource -> Files.newBufferedReader(root.resolve(resource), StandardCharsets.UTF_8))
+            .values()
+            .stream()
+            .collect(Collectors.toList());
+
+        Path parent = bundle.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        try (OutputStream output = Files.newOutputStream(bundle)) {
+            MigrationBundle.write(grouped, output);
+        }
+
+        return grouped.size();
+    }
+
+    private static MigrationData read(Path root, String resource) {
+        try (Reader reader = Files.newBufferedReader(root.resolve(resource), StandardCharsets.UTF_8)) {
+            return MigrationParser.createMigration(resource, reader);
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to read evolution: " + resource, e);
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package ru.finex.evolution.impl;
+
+import com.google.common.collect.ListMultimap;
+
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Parsed and checksummed migrations of all components with fingerprints, built once and shared by migration services.
+ * Catalogue keeps only metadata of migrations parsed from resources, queries are loaded by {@link #load(MigrationData)}
+ * when migration is applied and are not retained after it.
+ * @author m0nster.mind
+ */
+@Singleton
+public class MigrationCatalogue {
+
+    private final MigrationParser parser;
+    private final ListMultimap<String, MigrationData> migrations;
+    private final Map<String, String> fingerprints;
+    private final String deploymentScope;
+    private final String deploymentFingerprint;
+
+    @Inject
+    public MigrationCatalogue(MigrationParser parser, MigrationTree migrationTree) {
+        this.parser = parser;
+        migrations = parser.parseAll();
+        // queries are loaded again only for pending migrations
+        migrations.values().forEach(MigrationParser::releaseQueries);
+
+        MessageDigest digest = MigrationChecksums.createDigest();
+        List<String> components = migrationTree.getComponents();
+        fingerprints = new HashMap<>();
+        for (String component : components) {
+            fingerprints.put(component, MigrationChecksums.calculateFingerprint(digest, migrations.get(component).stream()
+                .map(MigrationData::getChecksum)
+                .collect(Collectors.toList())
+            ));
+        }
+
+        List<String> sortedComponents = components.stream()
+            .sorted()
+            .collect(Collectors.toList());
+        deploymentScope = MigrationConsts.DEPLOYMENT_SCOPE_PREFIX + MigrationChecksums.calculateFingerprint(digest, sortedComponents);
+        deploymentFingerprint = MigrationChecksums.calculateFingerprint(digest, sortedComponents.stream()
+            .map(component -> component + ":" + fingerprints.get(component))
+            .collect(Collectors.toList())
+        );
+    }
+
+    /**
+     * Migrations of component ordered by version.
+     * @param component component
+     * @return migrations
+     */
+    public List<MigrationData> getMigrations(String component) {
+        return migrations.get(component);
+    }
+
+    /**
+     * Load queries of migration.
+     * @param data migration of catalogue
+     * @return migration with queries
+     * @see MigrationParser#loadQueries(MigrationData)
+     */
+    public MigrationData load(MigrationData data) {
+        return parser.loadQueries(data);
+    }
+
+    /**
+     * Checksum of applied migration matches migration of catalogue.
+     * Checksum calculated in platform default charset by earlier versions is accepted too, it is calculated only on mismatch.
+     * @param data migration of catalogue
+     * @param checksum checksum of applied migration
+     * @return true if migration is not changed
+     */
+    public boolean matches(MigrationData data, String checksum) {
+        if (data.getChecksum().equals(checksum)) {
+            return true;
+        }
+
+        if (data.getLegacyChecksum() == null) {
+            data.setLegacyChecksum(parser.calculateLegacyChecksum(data));
+        }
+        return data.getLegacyChecksum().equals(checksum);
+    }
+
+    /**
+     * Fingerprint of component calculated from checksums of its migrations.
+     * @param component component
+     * @return fingerprint
+     */
+    public String getFingerprint(String component) {
+        return fingerprints.get(component);
+    }
+
+    /**
+     * Fingerprint scope of deployment (set of registered components).
+     * @return scope
+     */
+    public String getDeploymentScope() {
+        return deploymentScope;
+    }
+
+    /**
+     * Fingerprint of deployment calculated from fingerprints of components.
+     * @return fingerprint
+     */
+    public String getDeploymentFingerprint() {
+        return deploymentFingerprint;
+    }
+
+}
@@ -0,0 +1,109 @@
+package ru.finex.evolution.impl;
+
+import lombok.experimental.UtilityClass;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Checksums of migrations and fingerprints of components.
+ * @author m0nster.mind
+ */
+@UtilityClass
+public class MigrationChecksums {
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(MigrationChecksums::createDigest);
+
+    /**
+     * Calculate checksum of migration queries, line breaks and blank lines are not included into checksum.
+     * Used for migrations which are not parsed from scripts, scripts are checksummed by {@link ScriptChecksum}.
+     * @param digest digest
+     * @param data migration
+     * @return base64 encoded checksum
+     */
+    public static String calculateChecksum(MessageDigest digest, MigrationData data) {
+        digest.reset();
+        data.getUpQueries().forEach(query -> update(digest, query));
+        data.getDownQueries().forEach(query -> update(digest, query));
+        return complete(digest);
+    }
+
+    /**
+     * Complete digest calculation.
+     * @param digest digest
+     * @return base64 encoded checksum
+     */
+    public static String complete(MessageDigest digest) {
+        return new String(Base64.getEncoder().encode(digest.digest()));
+    }
+
+    /**
+     * Update digest with non-blank lines of query without line breaks.
+     * @param digest digest
+     * @param query query
+     */
+    public static void update(MessageDigest digest, String query) {
+        byte[] bytes = query.getBytes(StandardCharsets.UTF_8);
+        int lineStart = 0;
+        boolean blank = true;
+        for (int i = 0; i < bytes.length; i++) {
+            byte value = bytes[i];
+            if (value == '\n' || value == '\r') {
+                if (!blank) {
+                    digest.update(bytes, lineStart, i - lineStart);
+                }
+                lineStart = i + 1;
+                blank = true;
+            } else if (blank && !isWhitespace(value)) {
+                blank = false;
+            }
+        }
+
+        if (!blank) {
+            digest.update(bytes, lineStart, bytes.length - lineStart);
+        }
+    }
+
+    private static boolean isWhitespace(byte value) {
+        return value == ' ' || value >= 0x09 && value <= 0x0D || value >= 0x1C && value <= 0x1F;
+    }
+
+    /**
+     * Calculate fingerprint of ordered values.
+     * @param digest digest
+     * @param values values
+     * @return base64 encoded fingerprint
+     */
+    public static String calculateFingerprint(MessageDigest digest, List<String> values) {
+        digest.reset();
+        values.forEach(value -> {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        });
+        return complete(digest);
+    }
+
+    /**
+     * Digest of current thread, it is reset by every checksum calculation.
+     * @return SHA-512 digest
+     */
+    public static MessageDigest getDigest() {
+        return DIGESTS.get();
+    }
+
+    /**
+     * Create digest used by checksums.
+     * @return SHA-512 digest
+     */
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -16,11 +16,62 @@ public class MigrationConsts {
         "    checksum varchar not null,\n" +
         "    up_queries json not null,\n" +
         "    down_queries json not null,\n" +
-        "    apply_timestamp timestamp default now()\n" +
+        "    apply_timestamp timestamp default now(),\n" +
+        "    duration_ms bigint,\n" +
+        "    statement_durations json\n" +
         ")";
 
+    /**
+     * Columns added to history of previous versions: duration of migration and durations of its statements in milliseconds.
+     */
+    public static final String MIGRATION_COLUMNS =
+        "do $$\n" +
+        "begin\n" +
+        "    if not exists(select 1 from pg_attribute\n" +
+        "        where attrelid = 'db_evolutions'::regclass and attname = 'duration_ms' and not attisdropped) then\n" +
+        "        alter table db_evolutions add column duration_ms bigint, add column statement_durations json;\n" +
+        "    end if;\n" +
+        "end\n" +
+        "$$";
+
     @SuppressWarnings("checkstyle:Indentation")
     public static final String MIGRATION_INDEX =
         "create unique index if not exists db_evolutions_component_version_idx on db_evolutions(component, version)";
 
+    public static final String FINGERPRINT_TABLE =
+        "create table if not exists db_evolutions_fingerprints(\n" +
+        "    scope varchar primary key,\n" +
+        "    fingerprint varchar not null,\n" +
+        "    update_timestamp timestamp default now()\n" +
+        ")";
+
+    /**
+     * Checkpoints of not completed migrations: next key of chunked migration or next statement of non-transactional migration.
+     */
+    public static final String PROGRESS_TABLE =
+        "create table if not exists db_evolutions_progress(\n" +
+        "    component varchar not null,\n" +
+        "    version int not null,\n" +
+        "    checksum varchar not null,\n" +
+        "    next_key bigint not null,\n" +
+        "    update_timestamp timestamp default now(),\n" +
+        "    primary key(component, version)\n" +
+        ")";
+
+    /**
+     * Prefix of deployment fingerprint scope, component names can't contain it.
+     */
+    public static final String DEPLOYMENT_SCOPE_PREFIX = "@";
+
+    /**
+     * First key of advisory locks taken by migrations, second key is a hash of component.
+     */
+    public static final int LOCK_NAMESPACE = 0x46584556;
+
+    /**
+     * Classpath location of evolution bundle.
+     * @see MigrationBundleCompiler
+     */
+    public static final String BUNDLE_RESOURCE = "META-INF/finex-evolution/evolutions.idx";
+
 }
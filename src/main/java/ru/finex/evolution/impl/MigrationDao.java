@@ -2,8 +2,20 @@ package ru.finex.evolution.impl;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import ru.finex.evolution.MigrationConfig;
+import ru.finex.evolution.MigrationListener;
+import ru.finex.evolution.MigrationPlan;
+import ru.finex.evolution.TransactionMode;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -11,7 +23,18 @@ import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -20,93 +43,434 @@ import javax.sql.DataSource;
 /**
  * @author m0nster.mind
  */
+@Slf4j
 @Singleton
 @SuppressWarnings({"checkstyle:MissingJavadocMethod", "checkstyle:Indentation"})
 public class MigrationDao {
 
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final String LOCK_NOT_AVAILABLE = "55P03";
+    /**
+     * Statement is canceled by statement timeout or by request of user.
+     */
+    private static final String QUERY_CANCELED = "57014";
+    private static final int MAX_BACKOFF_SHIFT = 20;
+    private static final int HISTORY_BATCH_SIZE = 1000;
+    /**
+     * Statements of plan take locks of their tables, they must not wait behind other sessions.
+     */
+    private static final String PLAN_LOCK_TIMEOUT = "1s";
+    /**
+     * Statements of plan are explained or change only system catalog, they must not scan tables.
+     */
+    private static final String PLAN_STATEMENT_TIMEOUT = "1s";
+    /**
+     * Interval in milliseconds between attempts to acquire lock of component held by another node.
+     */
+    private static final long LOCK_POLL_INTERVAL = 100;
+
     private final ObjectMapper mapper = new ObjectMapper();
     private final DataSource dataSource;
+    private final MigrationConfig config;
+    private final String schema;
+    private final MigrationListener listener;
 
     @Inject
-    public MigrationDao(@Named("Migration") DataSource dataSource) {
+    public MigrationDao(@Named("Migration") DataSource dataSource, MigrationConfig config) {
+        this(dataSource, config, null);
+    }
+
+    /**
+     * Create DAO of evolutions stored into schema.
+     * @param dataSource data source, connections of it must use the schema
+     * @param config config
+     * @param schema schema name, advisory locks of different schemas don't intersect
+     */
+    public MigrationDao(DataSource dataSource, MigrationConfig config, String schema) {
         this.dataSource = dataSource;
+        this.config = config;
+        this.schema = schema;
+        this.listener = MigrationListeners.create(config.getListeners());
     }
 
     public void install() {
-        try (Connection connection = dataSource.getConnection()) {
-            boolean autoCommit = connection.getAutoCommit();
-            Savepoint savepoint = beginTrx(connection);
+        try (MigrationSession session = openSession();
+             Statement statement = session.getConnection().createStatement()) {
+            // concurrent creation of the same table fails, install of nodes is serialized
+            statement.execute("select pg_advisory_xact_lock(" + MigrationConsts.LOCK_NAMESPACE + ", " + lockKey("") + ")");
+            statement.addBatch(MigrationConsts.MIGRATION_TABLE);
+            statement.addBatch(MigrationConsts.MIGRATION_COLUMNS);
+            statement.addBatch(MigrationConsts.MIGRATION_INDEX);
+            statement.addBatch(MigrationConsts.FINGERPRINT_TABLE);
+            statement.addBatch(MigrationConsts.PROGRESS_TABLE);
+            statement.executeBatch();
+            commit(session);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Open session, connection of session is held until session is closed.
+     * @return session
+     */
+    public MigrationSession openSession() {
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            return new MigrationSession(connection);
+        } catch (SQLException e) {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write pending history and commit transaction of session.
+     * @param session session
+     */
+    public void commit(MigrationSession session) {
+        try {
+            flushHistory(session);
+            session.getConnection().commit();
+            session.setChanged(false);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
+    /**
+     * Rollback transaction of session, pending history is discarded.
+     * @param session session
+     */
+    public void rollback(MigrationSession session) {
+        session.getPendingHistory().clear();
+        session.setChanged(false);
+        try {
+            session.getConnection().rollback();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Explain DML statement in transaction of session, failed explain is rolled back to savepoint.
+     * Estimated cost and rows are set to statement, error of explain is set to statement too.
+     * @param session session
+     * @param statement DML statement
+     */
+    public void explain(MigrationSession session, MigrationPlan.Statement statement) {
+        Connection connection = session.getConnection();
+        try (Statement explain = connection.createStatement()) {
+            limitPlanStatement(explain);
+            Savepoint savepoint = connection.setSavepoint();
+            try (ResultSet resultSet = explain.executeQuery("explain (format json) " + statement.getSql())) {
+                resultSet.next();
+                JsonNode plan = mapper.readTree(resultSet.getString(1)).get(0).get("Plan");
+                statement.setCost(plan.get("Total Cost").asDouble());
+                // modify node of recent versions estimates zero rows without returning, rows are estimated by its scan
+                JsonNode rows = plan.path("Node Type").asText().equals("ModifyTable") && plan.has("Plans") ? plan.get("Plans").get(0) : plan;
+                statement.setRows(rows.get("Plan Rows").asLong());
+                connection.releaseSavepoint(savepoint);
+            } catch (SQLException e) {
+                statement.setExplainError(e.getMessage());
+                connection.rollback(savepoint);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Execute statement of plan which changes only system catalog in transaction of session,
+     * so the next statements of plan are explained against changed schema. Other statements are never executed.
+     * Failed statement is rolled back to savepoint, transaction of session must be rolled back after plan.
+     * @param session session
+     * @param statement statement
+     * @return true if statement is executed
+     * @see MigrationPlan.Kind#CATALOG
+     */
+    public boolean simulate(MigrationSession session, MigrationPlan.Statement statement) {
+        if (statement.getKind() != MigrationPlan.Kind.CATALOG) {
+            return false;
+        }
+
+        Connection connection = session.getConnection();
+        try (Statement execute = connection.createStatement()) {
+            limitPlanStatement(execute);
+            Savepoint savepoint = connection.setSavepoint();
             try {
-                Statement statement = connection.createStatement();
-                statement.addBatch(MigrationConsts.MIGRATION_TABLE);
-                statement.addBatch(MigrationConsts.MIGRATION_INDEX);
-                statement.executeBatch();
-                statement.close();
-                savepoint = null;
-            } finally {
-                flushTrx(connection, savepoint, autoCommit);
+                execute.execute(statement.getSql());
+                connection.releaseSavepoint(savepoint);
+                statement.setExecuted(true);
+                return true;
+            } catch (SQLException e) {
+                log.debug("Planned statement is not executed: {}", e.getMessage());
+                connection.rollback(savepoint);
+                return false;
             }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public List<String> getChecksumsByComponent(String component) {
+    private static void limitPlanStatement(Statement statement) throws SQLException {
+        statement.execute("set local lock_timeout = '" + PLAN_LOCK_TIMEOUT + "'");
+        statement.execute("set local statement_timeout = '" + PLAN_STATEMENT_TIMEOUT + "'");
+    }
+
+    public MigrationState loadState(Collection<String> components) {
+        try (Connection connection = dataSource.getConnection()) {
+            return loadState(connection, components);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Load state of components using connection of session, state is read in transaction of session.
+     * @param session session
+     * @param components components
+     * @return state
+     */
+    public MigrationState loadState(MigrationSession session, Collection<String> components) {
+        try {
+            return loadState(session.getConnection(), components);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private MigrationState loadState(Connection connection, Collection<String> components) throws SQLException {
         String query =
-                "select checksum\n" +
+                "select component, version, checksum, duration_ms\n" +
                         "from db_evolutions\n" +
-                        "where component = ?\n" +
-                        "order by version asc";
+                        "where component = any(?)\n" +
+                        "order by component asc, version asc";
 
-        try (Connection connection = dataSource.getConnection();
-             PreparedStatement statement = connection.prepareStatement(query)) {
-            statement.setString(1, component);
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            Array array = connection.createArrayOf("varchar", components.toArray());
+            statement.setArray(1, array);
             try (ResultSet results = statement.executeQuery()) {
-                List<String> result = new ArrayList<>();
+                ListMultimap<String, AppliedMigration> result = ArrayListMultimap.create();
                 while (results.next()) {
-                    result.add(results.getString(1));
+                    String component = results.getString(1);
+                    int version = results.getInt(2);
+                    String checksum = results.getString(3);
+                    long duration = results.getLong(4);
+                    // duration is null in history written before durations were stored
+                    boolean unknownDuration = results.wasNull();
+                    result.put(component, new AppliedMigration(component, version, checksum, unknownDuration ? -1 : duration));
+                }
+
+                return new MigrationState(result, getFingerprints(connection, array));
+            } finally {
+                array.free();
+            }
+        }
+    }
+
+    /**
+     * Acquire advisory lock of component, lock is held by connection of session until it is unlocked or session is closed.
+     * Blocks while lock is held by another session: transaction of session is committed and lock is polled,
+     * except {@link TransactionMode#PLAN} which waits for lock in its transaction.
+     * @param session session
+     * @param component component
+     */
+    public void lock(MigrationSession session, String component) {
+        Connection connection = session.getConnection();
+        try {
+            int key = lockKey(component);
+            if (!executeLock(connection, "select pg_try_advisory_lock(?, ?)", key)) {
+                log.info("Waiting for evolutions of '{}' migrated by another node.", component);
+                if (config.getTransactionMode() == TransactionMode.PLAN) {
+                    // plan transaction is open while lock is awaited anyway
+                    executeLock(connection, "select true from pg_advisory_lock(?, ?)", key);
+                } else {
+                    // transaction waiting for lock holds a snapshot, create index concurrently of the lock holder
+                    // would wait for it and the nodes would deadlock, so lock is polled without open transaction
+                    do {
+                        connection.commit();
+                        throttle(LOCK_POLL_INTERVAL);
+                    } while (!executeLock(connection, "select pg_try_advisory_lock(?, ?)", key));
+                }
+            }
+            session.setLocked(true);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Release advisory lock of component.
+     * @param session session
+     * @param component component
+     */
+    public void unlock(MigrationSession session, String component) {
+        try {
+            executeLock(session.getConnection(), "select pg_advisory_unlock(?, ?)", lockKey(component));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int lockKey(String component) {
+        return schema == null ? component.hashCode() : (schema + "." + component).hashCode();
+    }
+
+    private static boolean executeLock(Connection connection, String query, int key) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setInt(1, MigrationConsts.LOCK_NAMESPACE);
+            statement.setInt(2, key);
+            try (ResultSet results = statement.executeQuery()) {
+                return results.next() && results.getBoolean(1);
+            }
+        }
+    }
+
+    private Map<String, String> getFingerprints(Connection connection, Array scopes) throws SQLException {
+        String query =
+                "select scope, fingerprint\n" +
+                        "from db_evolutions_fingerprints\n" +
+                        "where scope = any(?)";
+
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setArray(1, scopes);
+            try (ResultSet results = statement.executeQuery()) {
+                Map<String, String> result = new HashMap<>();
+                while (results.next()) {
+                    result.put(results.getString(1), results.getString(2));
                 }
 
                 return result;
             }
+        }
+    }
+
+    public String getFingerprint(String scope) {
+        String query =
+                "select fingerprint\n" +
+                        "from db_evolutions_fingerprints\n" +
+                        "where scope = ?";
+
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setString(1, scope);
+            try (ResultSet results = statement.executeQuery()) {
+                return results.next() ? results.getString(1) : null;
+            }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
-    @SuppressWarnings("checkstyle:NestedTryDepth")
-    public void rollbackAndDeleteRecursive(String component, int version) {
-        try (Connection connection = dataSource.getConnection()) {
-            boolean autoCommit = connection.getAutoCommit();
-            Savepoint savepoint = beginTrx(connection);
+    public void saveFingerprints(Map<String, String> fingerprints) {
+        try (MigrationSession session = openSession()) {
+            saveFingerprints(session, fingerprints);
+            commit(session);
+        }
+    }
 
-            try {
-                List<String> queries = getDownQueriesByComponentAndUpperVersion(connection, component, version);
-                try (Statement statement = connection.createStatement()) {
-                    for (String query : queries) {
-                        statement.addBatch(query);
-                    }
+    public void saveFingerprints(MigrationSession session, Map<String, String> fingerprints) {
+        String updateQuery =
+                "update db_evolutions_fingerprints\n" +
+                        "set fingerprint = ?, update_timestamp = now()\n" +
+                        "where scope = ?";
+        String insertQuery =
+                "insert into db_evolutions_fingerprints(scope, fingerprint) values (?, ?)";
 
-                    statement.executeBatch();
+        Connection connection = session.getConnection();
+        try (PreparedStatement update = connection.prepareStatement(updateQuery);
+             PreparedStatement insert = connection.prepareStatement(insertQuery)) {
+            for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                update.setString(1, entry.getValue());
+                update.setString(2, entry.getKey());
+                if (update.executeUpdate() > 0) {
+                    continue;
                 }
 
-                delete(connection, component, version);
-                savepoint = null;
-            } finally {
-                flushTrx(connection, savepoint, autoCommit);
+                insert.setString(1, entry.getKey());
+                insert.setString(2, entry.getValue());
+                // failed insert aborts transaction, savepoint keeps it alive
+                Savepoint savepoint = connection.setSavepoint();
+                try {
+                    insert.execute();
+                    connection.releaseSavepoint(savepoint);
+                } catch (SQLException e) {
+                    if (!UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                        throw e;
+                    }
+                    // concurrently inserted by another node
+                    connection.rollback(savepoint);
+                }
             }
         } catch (SQLException e) {
             throw new RuntimeException(e);
+        }
+    }
+
+    public void rollbackAndDeleteRecursive(String component, int version) {
+        try (MigrationSession session = openSession()) {
+            rollbackAndDeleteRecursive(session, component, version);
+            commit(session);
+        }
+    }
+
+    public void rollbackAndDeleteRecursive(MigrationSession session, String component, int version) {
+        Connection connection = session.getConnection();
+        try {
+            flushHistory(session);
+            session.setChanged(true);
+            apply(connection, null, getDownQueriesByComponentAndUpperVersion(connection, component, version));
+            delete(connection, component, version);
+            deleteFingerprints(connection, component);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
-
     }
 
     private List<String> getDownQueriesByComponentAndUpperVersion(Connection connection, String component, int version) throws SQLException, JsonProcessingException {
+        Map<Integer, List<String>> downQueries = getDownQueries(connection, component, version);
+        if (downQueries.isEmpty()) {
+            throw new NullPointerException(String.format(
+                "Down queries not found for %s component and %d version.",
+                component, version
+            ));
+        }
+
+        List<String> result = new ArrayList<>();
+        downQueries.values().forEach(result::addAll);
+        return result;
+    }
+
+    /**
+     * Down queries of applied versions starting from version in order of rollback.
+     * @param session session
+     * @param component component
+     * @param version first version to rollback
+     * @return down queries by version, versions are ordered descending
+     */
+    public Map<Integer, List<String>> getDownQueries(MigrationSession session, String component, int version) {
+        try {
+            return getDownQueries(session.getConnection(), component, version);
+        } catch (SQLException | JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Map<Integer, List<String>> getDownQueries(Connection connection, String component, int version) throws SQLException, JsonProcessingException {
         String query =
-                "select down_queries\n" +
+                "select version, down_queries\n" +
                         "from db_evolutions\n" +
                         "where component = ? and version >= ?\n" +
                         "order by version desc";
@@ -115,22 +479,13 @@ public class MigrationDao {
             statement.setString(1, component);
             statement.setInt(2, version);
             try (ResultSet results = statement.executeQuery()) {
-                boolean hasResult = false;
-                List<String> result = new ArrayList<>();
+                Map<Integer, List<String>> result = new LinkedHashMap<>();
                 while (results.next()) {
                     List<String> queries = mapper.readValue(
-                            results.getString(1),
+                            results.getString(2),
                             new TypeReference<List<String>>() {}
                     );
-                    result.addAll(queries);
-                    hasResult = true;
-                }
-
-                if (!hasResult) {
-                    throw new NullPointerException(String.format(
-                        "Down queries not found for %s component and %d version.",
-                        component, version
-                    ));
+                    result.put(results.getInt(1), queries);
                 }
 
                 return result;
@@ -150,69 +505,825 @@ public class MigrationDao {
         }
     }
 
+    private void deleteFingerprints(Connection connection, String component) throws SQLException {
+        String query =
+                "delete from db_evolutions_fingerprints\n" +
+                        "where scope = ? or scope like ?";
+
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setString(1, component);
+            statement.setString(2, MigrationConsts.DEPLOYMENT_SCOPE_PREFIX + "%");
+            statement.execute();
+        }
+    }
+
     public void applyAndSave(MigrationData data, String checksum) {
-        try (Connection connection = dataSource.getConnection()) {
-            boolean autoCommit = connection.getAutoCommit();
-            Savepoint savepoint = beginTrx(connection);
+        try (MigrationSession session = openSession()) {
+            applyAndSave(session, data, checksum);
+            commit(session);
+        }
+    }
 
-            try {
-                apply(connection, data.getUpQueries());
-                save(connection, data, checksum);
-                savepoint = null;
-            } finally {
-                flushTrx(connection, savepoint, autoCommit);
-            }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+    /**
+     * Apply migration in transaction of session, history record is written on commit.
+     * @param session session
+     * @param data migration
+     * @param checksum checksum of migration
+     */
+    public void applyAndSave(MigrationSession session, MigrationData data, String checksum) {
+        applyAndSave(session, prepare(data, checksum));
+    }
+
+    /**
+     * Prepare migration to apply: decode statements of bundled migration and serialize history record.
+     * Doesn't use database, so can be done concurrently with applying of previous migration.
+     * @param data migration
+     * @param checksum checksum of migration
+     * @return prepared migration
+     */
+    public PreparedMigration prepare(MigrationData data, String checksum) {
+        List<String> upQueries = null;
+        if (data.getChunked() != null) {
+            upQueries = Collections.emptyList();
+        } else if (!data.isStreamed()) {
+            upQueries = MigrationBundle.sizeOf(data.getUpQueries()) < 0 ? data.getUpQueries() : new ArrayList<>(data.getUpQueries());
+        }
+
+        try {
+            return new PreparedMigration(
+                data,
+                checksum,
+                upQueries,
+                writeUpHistory(data, checksum, upQueries),
+                mapper.writeValueAsString(data.getDownQueries())
+            );
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void apply(Connection connection, List<String> queries) throws SQLException {
-        try (Statement statement = connection.createStatement()) {
+    /**
+     * Apply prepared migration in transaction of session, history record is written on commit.
+     * Non-transactional migration commits work of session before it, its statements are executed in auto-commit mode
+     * with a checkpoint after every statement and its history record is committed right after them.
+     * Chunked migration commits work of session before it, every chunk is committed with its checkpoint
+     * and history record is committed after the last chunk.
+     * @param session session
+     * @param migration prepared migration
+     * @return count of changed rows, {@code -1} if it is unknown
+     */
+    public long applyAndSave(MigrationSession session, PreparedMigration migration) {
+        MigrationData data = migration.getData();
+        Connection connection = session.getConnection();
+        try {
+            long start = System.nanoTime();
+            Timeouts timeouts = timeouts(session, data);
+            Execution execution;
+            if (data.getChunked() != null) {
+                execution = applyChunked(session, migration, timeouts);
+            } else if (data.isNontransactional()) {
+                execution = applyNontransactional(session, migration, timeouts);
+            } else {
+                execution = applyTransactional(session, migration, timeouts);
+                session.setChanged(true);
+            }
+
+            session.getPendingHistory().add(new MigrationSession.HistoryRecord(
+                data.getComponent(),
+                data.getVersion(),
+                migration.getChecksum(),
+                migration.getUpHistory(),
+                migration.getDownHistory(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                execution.getStatementDurations() == null ? null : mapper.writeValueAsString(execution.getStatementDurations())
+            ));
+            if (data.getChunked() != null || data.isNontransactional()) {
+                commit(session);
+            } else if (session.getPendingHistory().size() >= HISTORY_BATCH_SIZE) {
+                flushHistory(session);
+            }
+            return execution.getRowCount();
+        } catch (SQLException | JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Timeouts of up statements of migration, defaults of session are read once when timeouts are set first time.
+     */
+    private Timeouts timeouts(MigrationSession session, MigrationData data) throws SQLException {
+        String lockTimeout = data.getLockTimeout() != null ? data.getLockTimeout() : timeout(config.getLockTimeout());
+        String statementTimeout = data.getStatementTimeout() != null ? data.getStatementTimeout() : timeout(config.getStatementTimeout());
+        if (lockTimeout == null && statementTimeout == null) {
+            return new Timeouts(session, null, null);
+        }
+
+        if (session.getDefaultLockTimeout() == null) {
+            try (Statement statement = session.getConnection().createStatement();
+                 ResultSet resultSet = statement.executeQuery("select current_setting('lock_timeout'), current_setting('statement_timeout')")) {
+                resultSet.next();
+                session.setDefaultTimeouts(resultSet.getString(1), resultSet.getString(2));
+            }
+        }
+
+        return new Timeouts(
+            session,
+            lockTimeout != null ? lockTimeout : session.getDefaultLockTimeout(),
+            statementTimeout != null ? statementTimeout : session.getDefaultStatementTimeout()
+        );
+    }
+
+    private static String timeout(long millis) {
+        return millis > 0 ? millis + "ms" : null;
+    }
+
+    /**
+     * Apply migration in transaction of session, migration failed by timeout is rolled back to savepoint and retried.
+     * Migration is retried only if it is the first work of transaction: savepoint keeps locks of previous versions,
+     * they would be held during backoff and block the sessions the migration waits for.
+     * Timeouts are set locally after savepoint and restored after statements, so they don't outlive the statements.
+     */
+    private Execution applyTransactional(MigrationSession session, PreparedMigration migration, Timeouts timeouts) throws SQLException {
+        Connection connection = session.getConnection();
+        MigrationData data = migration.getData();
+        Retry retry = new Retry(data);
+        while (true) {
+            Savepoint savepoint = connection.setSavepoint();
+            try {
+                timeouts.set(true);
+                Execution execution = migration.getUpQueries() == null
+                    ? applyStreamed(connection, data)
+                    : apply(connection, data, migration.getUpQueries());
+                timeouts.restore(true);
+                connection.releaseSavepoint(savepoint);
+                return execution;
+            } catch (SQLException e) {
+                connection.rollback(savepoint);
+                if (session.isChanged()) {
+                    if (timeoutState(e) != null) {
+                        log.warn("Evolution '{}' version {} is failed by timeout and is not retried: transaction holds locks of previous evolutions.",
+                            data.getComponent(), data.getVersion());
+                    }
+                    throw e;
+                }
+
+                // failed statement of batch is unknown, so blockers are searched by tables of all statements
+                if (!retry.backoff(e, connection, migration.getUpQueries())) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply queries in transaction.
+     * @param data migration of queries, null if queries are not a migration (rollback) and statement events are not emitted
+     */
+    private Execution apply(Connection connection, MigrationData data, List<String> queries) throws SQLException {
+        try (StatementRunner runner = new StatementRunner(connection, data, false)) {
             for (String query : queries) {
-                statement.addBatch(query);
+                runner.add(query);
             }
+            return runner.finish();
+        }
+    }
 
-            statement.executeBatch();
+    private Execution applyStreamed(Connection connection, MigrationData data) throws SQLException {
+        try (StatementRunner runner = new StatementRunner(connection, data, false)) {
+            forEachStreamedQuery(data, runner::add);
+            return runner.finish();
+        }
+    }
+
+    private void forEachStreamedQuery(MigrationData data, QueryConsumer consumer) throws SQLException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        for (String resource : data.getResources()) {
+            try (Reader reader = MigrationParser.openResource(classLoader, resource)) {
+                SqlLexer lexer = new SqlLexer(reader);
+                for (SqlLexer.Statement query = lexer.next(); query != null; query = lexer.next()) {
+                    if (query.getSection() == SqlLexer.Section.UP) {
+                        consumer.accept(query.getText());
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Fail to read evolution: " + resource, e);
+            }
+        }
+    }
+
+    private Execution applyNontransactional(MigrationSession session, PreparedMigration migration, Timeouts timeouts) throws SQLException {
+        MigrationData data = migration.getData();
+        if (config.getTransactionMode() == TransactionMode.PLAN && !session.getPendingHistory().isEmpty()) {
+            log.warn("Plan transaction is committed before non-transactional evolution '{}' version {}.", data.getComponent(), data.getVersion());
+        }
+
+        // statements could not be rolled back, so work of session is committed before them
+        commit(session);
+        Connection connection = session.getConnection();
+        connection.setAutoCommit(true);
+        Execution execution;
+        // every statement is sent alone: batch is executed in implicit transaction block
+        try (StatementRunner runner = new StatementRunner(connection, data, true)) {
+            Long checkpoint = loadCheckpoint(connection, data, migration.getChecksum());
+            long firstStatement = checkpoint == null ? 0 : checkpoint;
+            if (checkpoint != null) {
+                log.info("Resume non-transactional evolution '{}' version {} from statement {}.", data.getComponent(), data.getVersion(), checkpoint);
+            }
+
+            Retry retry = new Retry(data);
+            QueryConsumer consumer = query -> {
+                if (runner.getIndex() < firstStatement) {
+                    runner.skip(); // committed by previous run
+                    return;
+                }
+
+                IndexBuild indexBuild = IndexBuild.parse(query);
+                if (indexBuild != null && checkpoint != null && runner.getIndex() == firstStatement) {
+                    dropInterruptedIndexes(connection, indexBuild);
+                }
+                while (true) {
+                    Map<Long, InvalidIndex> invalidIndexes = indexBuild == null ? null : findInvalidIndexes(connection, indexBuild);
+                    try {
+                        // auto-commit statement has no transaction to scope timeouts, they are restored right after it
+                        timeouts.set(false);
+                        try {
+                            runner.add(query);
+                        } finally {
+                            timeouts.restore(false);
+                        }
+                        break;
+                    } catch (SQLException e) {
+                        if (indexBuild != null) {
+                            dropInvalidIndexes(connection, indexBuild, invalidIndexes, e);
+                        }
+                        // statements before the failed one are committed, only it is retried
+                        if (!retry.backoff(e, connection, Collections.singletonList(query))) {
+                            throw e;
+                        }
+                    }
+                }
+                saveCheckpoint(connection, data, migration.getChecksum(), runner.getIndex());
+            };
+
+            if (migration.getUpQueries() == null) {
+                forEachStreamedQuery(data, consumer);
+            } else {
+                for (String query : migration.getUpQueries()) {
+                    consumer.accept(query);
+                }
+            }
+            execution = runner.finish();
+        } finally {
+            connection.setAutoCommit(false);
+        }
+
+        deleteCheckpoint(connection, data);
+        return execution;
+    }
+
+    private Execution applyChunked(MigrationSession session, PreparedMigration migration, Timeouts timeouts) throws SQLException {
+        MigrationData data = migration.getData();
+        ChunkedTask task = data.getChunked();
+        if (config.getTransactionMode() == TransactionMode.PLAN && !session.getPendingHistory().isEmpty()) {
+            log.warn("Plan transaction is committed before chunked evolution '{}' version {}.", data.getComponent(), data.getVersion());
+        }
+
+        commit(session);
+        Connection connection = session.getConnection();
+        long lastKey = task.getMigration().getLastKey(connection);
+        Long checkpoint = loadCheckpoint(connection, data, migration.getChecksum());
+        long fromKey = checkpoint != null ? checkpoint : task.getMigration().getFirstKey(connection);
+        long firstKey = fromKey;
+        connection.commit();
+        if (checkpoint != null) {
+            log.info("Resume chunked evolution '{}' version {} from key {}.", data.getComponent(), data.getVersion(), checkpoint);
+        }
+
+        int reported = -1;
+        int chunk = 0;
+        Retry retry = new Retry(data);
+        while (fromKey <= lastKey) {
+            long chunkFrom = fromKey;
+            long toKey = lastKey - fromKey < task.getChunkSize() ? lastKey + 1 : fromKey + task.getChunkSize();
+            try {
+                timeouts.set(true);
+                instrument(data, chunk, "chunk [" + chunkFrom + ", " + toKey + ")", () -> {
+                    task.getMigration().processChunk(connection, chunkFrom, toKey);
+                    return -1;
+                });
+                timeouts.restore(true);
+                saveCheckpoint(connection, data, migration.getChecksum(), toKey);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                // chunk is committed with its checkpoint, so only failed chunk is retried
+                if (retry.backoff(e, connection, Collections.emptyList())) {
+                    continue;
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+            chunk++;
+            fromKey = toKey;
+
+            int percent = (int) ((fromKey - firstKey) * 100.0 / (lastKey + 1 - firstKey));
+            if (percent != reported) {
+                reported = percent;
+                log.info("Chunked evolution '{}' version {}: {}% (next key {}).", data.getComponent(), data.getVersion(), percent, fromKey);
+            }
+
+            if (task.getThrottle() > 0 && fromKey <= lastKey) {
+                throttle(task.getThrottle());
+            }
+        }
+
+        deleteCheckpoint(connection, data);
+        return new Execution(-1, null);
+    }
+
+    /**
+     * Execute call with statement events if they are enabled.
+     * @return count of changed rows
+     */
+    private long instrument(MigrationData data, int index, String statement, SqlCall call) throws SQLException {
+        if (data == null || !config.isStatementEvents()) {
+            return call.call();
+        }
+
+        listener.statementStarted(data.getComponent(), data.getVersion(), index, statement);
+        long start = System.nanoTime();
+        long rowCount = -1;
+        Throwable failure = null;
+        try {
+            rowCount = call.call();
+            return rowCount;
+        } catch (SQLException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            listener.statementCompleted(data.getComponent(), data.getVersion(), index, statement, System.nanoTime() - start, rowCount, failure);
+        }
+    }
+
+    private static Long loadCheckpoint(Connection connection, MigrationData data, String checksum) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+            "select next_key from db_evolutions_progress where component = ? and version = ? and checksum = ?")) {
+            statement.setString(1, data.getComponent());
+            statement.setInt(2, data.getVersion());
+            statement.setString(3, checksum);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : null;
+            }
+        }
+    }
+
+    private static void saveCheckpoint(Connection connection, MigrationData data, String checksum, long nextKey) throws SQLException {
+        try (PreparedStatement update = connection.prepareStatement(
+            "update db_evolutions_progress set checksum = ?, next_key = ?, update_timestamp = now() where component = ? and version = ?")) {
+            update.setString(1, checksum);
+            update.setLong(2, nextKey);
+            update.setString(3, data.getComponent());
+            update.setInt(4, data.getVersion());
+            if (update.executeUpdate() > 0) {
+                return;
+            }
+        }
+
+        // migration of component is serialized by lock, so concurrent insert is not expected
+        try (PreparedStatement insert = connection.prepareStatement(
+            "insert into db_evolutions_progress(component, version, checksum, next_key) values(?, ?, ?, ?)")) {
+            insert.setString(1, data.getComponent());
+            insert.setInt(2, data.getVersion());
+            insert.setString(3, checksum);
+            insert.setLong(4, nextKey);
+            insert.executeUpdate();
+        }
+    }
+
+    /**
+     * Delete checkpoint of completed migration in transaction of session, it is removed with history record written by commit.
+     */
+    private static void deleteCheckpoint(Connection connection, MigrationData data) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+            "delete from db_evolutions_progress where component = ? and version = ?")) {
+            statement.setString(1, data.getComponent());
+            statement.setInt(2, data.getVersion());
+            statement.executeUpdate();
+        }
+    }
+
+    private static void throttle(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
     }
 
-    private void save(Connection connection, MigrationData data, String checksum) throws SQLException, JsonProcessingException {
+    /**
+     * Log sessions holding locks of tables used by statements, table of every statement is recognized by {@link SqlLocks}.
+     * Blockers are read by another connection: transaction of migration could be failed.
+     */
+    private void reportBlockers(MigrationData data, Connection connection, List<String> statements) {
+        Set<String> tables = new LinkedHashSet<>();
+        for (String query : statements) {
+            String table = SqlLocks.classify(query).getTable();
+            if (table != null) {
+                tables.add(table);
+            }
+        }
+        if (tables.isEmpty()) {
+            return;
+        }
+
         String query =
+                "select l.pid, l.mode, a.usename, a.application_name, a.state,\n" +
+                        "    extract(epoch from now() - a.xact_start)::bigint, left(a.query, 200)\n" +
+                        "from pg_locks l\n" +
+                        "join pg_class c on c.oid = l.relation\n" +
+                        "join pg_namespace n on n.oid = c.relnamespace\n" +
+                        "join pg_stat_activity a on a.pid = l.pid\n" +
+                        "where l.granted and l.pid <> ? and c.relname = ? and (n.nspname = ? or (? = '' and pg_table_is_visible(c.oid)))";
+
+        try (Statement pidStatement = connection.createStatement();
+             ResultSet pidResult = pidStatement.executeQuery("select pg_backend_pid()");
+             Connection monitor = dataSource.getConnection();
+             PreparedStatement statement = monitor.prepareStatement(query)) {
+            pidResult.next();
+            for (String table : tables) {
+                String[] name = SqlLocks.unquote(table);
+                statement.setInt(1, pidResult.getInt(1));
+                statement.setString(2, name[1]);
+                statement.setString(3, name[0]);
+                statement.setString(4, name[0]);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        log.warn("Evolution '{}' version {} is blocked on {} by pid {}: {}, user '{}', application '{}', {} for {}s, query: {}",
+                            data.getComponent(), data.getVersion(), table, resultSet.getInt(1), resultSet.getString(2), resultSet.getString(3),
+                            resultSet.getString(4), resultSet.getString(5), resultSet.getLong(6), resultSet.getString(7));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            log.warn("Fail to find blockers of evolution '{}' version {}.", data.getComponent(), data.getVersion(), e);
+        }
+    }
+
+    /**
+     * SQL state of lock or statement timeout.
+     * @return SQL state or null if failure is not a timeout
+     */
+    private static String timeoutState(SQLException failure) {
+        for (SQLException e = failure; e != null; e = e.getNextException()) {
+            if (LOCK_NOT_AVAILABLE.equals(e.getSQLState()) || QUERY_CANCELED.equals(e.getSQLState())) {
+                return e.getSQLState();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find invalid indexes of build: indexes of schema of build or visible by search path if schema is not specified.
+     */
+    private static Map<Long, InvalidIndex> findInvalidIndexes(Connection connection, IndexBuild build) throws SQLException {
+        Map<Long, InvalidIndex> result = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+            "select i.indexrelid::bigint, c.relname, i.indexrelid::regclass::text, t.relname\n" +
+            "from pg_index i\n" +
+            "join pg_class c on c.oid = i.indexrelid\n" +
+            "join pg_class t on t.oid = i.indrelid\n" +
+            "join pg_namespace n on n.oid = c.relnamespace\n" +
+            "where not i.indisvalid and (n.nspname = ? or (? = '' and pg_table_is_visible(c.oid)))")) {
+            statement.setString(1, build.getSchema());
+            statement.setString(2, build.getSchema());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    if (build.matches(resultSet.getString(2), resultSet.getString(4))) {
+                        result.put(resultSet.getLong(1), new InvalidIndex(resultSet.getString(2), resultSet.getString(3)));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drop invalid indexes of build interrupted by crash of previous run before resumed statement is retried.
+     * Statement of checkpoint is not completed and lock of component is held, so its invalid indexes are not built by another session.
+     */
+    private static void dropInterruptedIndexes(Connection connection, IndexBuild build) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            for (InvalidIndex index : findInvalidIndexes(connection, build).values()) {
+                log.warn("Drop invalid index {} left by interrupted run.", index.getQualifiedName());
+                statement.execute("drop index concurrently if exists " + index.getQualifiedName());
+            }
+        }
+    }
+
+    /**
+     * Drop invalid indexes left by failed statement.
+     * Only indexes named by statement which were not invalid before it are dropped,
+     * so invalid indexes of other schemas and builds of other sessions are kept.
+     */
+    private static void dropInvalidIndexes(Connection connection, IndexBuild build, Map<Long, InvalidIndex> existing, SQLException failure) {
+        try (Statement statement = connection.createStatement()) {
+            for (Map.Entry<Long, InvalidIndex> entry : findInvalidIndexes(connection, build).entrySet()) {
+                if (existing.containsKey(entry.getKey())) {
+                    continue;
+                }
+
+                InvalidIndex index = entry.getValue();
+                log.warn("Drop invalid index {} left by failed statement.", index.getQualifiedName());
+                statement.execute("drop index concurrently if exists " + index.getQualifiedName());
+            }
+        } catch (SQLException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private String writeUpHistory(MigrationData data, String checksum, List<String> upQueries) throws JsonProcessingException {
+        if (data.getChunked() == null && upQueries != null) {
+            return mapper.writeValueAsString(upQueries);
+        }
+
+        // streamed queries are too large for history and chunked migration has no queries, keep pointer to them
+        Map<String, Object> pointer = new LinkedHashMap<>();
+        pointer.put(data.getChunked() == null ? "streamed" : "chunked", true);
+        pointer.put("resources", data.getResources());
+        pointer.put("checksum", checksum);
+        return mapper.writeValueAsString(pointer);
+    }
+
+    private static void flushHistory(MigrationSession session) throws SQLException {
+        List<MigrationSession.HistoryRecord> records = session.getPendingHistory();
+        if (records.isEmpty()) {
+            return;
+        }
+
+        StringBuilder query = new StringBuilder(
                 "insert into db_evolutions(\n" +
                         "    component,\n" +
                         "    version,\n" +
                         "    checksum,\n" +
                         "    up_queries,\n" +
-                        "    down_queries\n" +
-                        ") values (?, ?, ?, ?::json, ?::json)";
+                        "    down_queries,\n" +
+                        "    duration_ms,\n" +
+                        "    statement_durations\n" +
+                        ") values ");
+        for (int i = 0; i < records.size(); i++) {
+            query.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?::json, ?::json, ?, ?::json)");
+        }
 
-        try (PreparedStatement statement = connection.prepareStatement(query)) {
-            statement.setString(1, data.getComponent());
-            statement.setInt(2, data.getVersion());
-            statement.setString(3, checksum);
-            statement.setObject(4, mapper.writeValueAsString(data.getUpQueries()));
-            statement.setObject(5, mapper.writeValueAsString(data.getDownQueries()));
+        try (PreparedStatement statement = session.getConnection().prepareStatement(query.toString())) {
+            int index = 1;
+            for (MigrationSession.HistoryRecord record : records) {
+                statement.setString(index++, record.getComponent());
+                statement.setInt(index++, record.getVersion());
+                statement.setString(index++, record.getChecksum());
+                statement.setObject(index++, record.getUpQueries());
+                statement.setObject(index++, record.getDownQueries());
+                statement.setLong(index++, record.getDurationMillis());
+                statement.setString(index++, record.getStatementDurations());
+            }
             statement.execute();
         }
+
+        records.clear();
     }
 
-    private static Savepoint beginTrx(Connection connection) throws SQLException {
-        connection.setAutoCommit(false);
-        return connection.setSavepoint();
+    @Data
+    private static class InvalidIndex {
+
+        private final String name;
+        private final String qualifiedName;
+
     }
 
-    private static void flushTrx(Connection connection, Savepoint savepoint, boolean autoCommit) throws SQLException {
-        try {
-            if (savepoint != null) {
-                connection.rollback(savepoint);
+    /**
+     * Result of migration statements.
+     */
+    @Data
+    private static class Execution {
+
+        /**
+         * Count of changed rows, {@code -1} if it is unknown.
+         */
+        private final long rowCount;
+        /**
+         * Durations of statements in milliseconds, null if statements are not measured.
+         * Statements committed by previous run of non-transactional migration have null duration.
+         */
+        private final List<Long> statementDurations;
+
+    }
+
+    /**
+     * Lock and statement timeouts of up statements, they are in effect only while up statements are executed:
+     * component locks, down statements and history writes of session are not limited by them.
+     */
+    private static final class Timeouts {
+
+        private final MigrationSession session;
+        /**
+         * Both timeouts are null if migration has no timeouts, otherwise timeout which is not set by migration is a default of session.
+         */
+        private final String lockTimeout;
+        private final String statementTimeout;
+
+        private Timeouts(MigrationSession session, String lockTimeout, String statementTimeout) {
+            this.session = session;
+            this.lockTimeout = lockTimeout;
+            this.statementTimeout = statementTimeout;
+        }
+
+        /**
+         * Set timeouts before statements.
+         * @param local set timeouts until the end of transaction, otherwise they are set for session
+         */
+        private void set(boolean local) throws SQLException {
+            if (lockTimeout == null) {
+                return;
             }
-            connection.commit();
-        } finally {
-            connection.setAutoCommit(autoCommit);
+
+            if (!local) {
+                session.setTimeoutsChanged(true);
+            }
+            update(lockTimeout, statementTimeout, local);
         }
+
+        /**
+         * Restore defaults of session after statements.
+         * @param local timeouts were set until the end of transaction
+         */
+        private void restore(boolean local) throws SQLException {
+            if (lockTimeout == null) {
+                return;
+            }
+
+            update(session.getDefaultLockTimeout(), session.getDefaultStatementTimeout(), local);
+            if (!local) {
+                session.setTimeoutsChanged(false);
+            }
+        }
+
+        private void update(String lock, String statement, boolean local) throws SQLException {
+            try (PreparedStatement update = session.getConnection().prepareStatement(
+                "select set_config('lock_timeout', ?, ?), set_config('statement_timeout', ?, ?)")) {
+                update.setString(1, lock);
+                update.setBoolean(2, local);
+                update.setString(3, statement);
+                update.setBoolean(4, local);
+                update.execute();
+            }
+        }
+
+    }
+
+    /**
+     * Retries of migration failed by lock or statement timeout with exponential backoff and jitter,
+     * total delay of retries of migration is limited by {@link MigrationConfig#getRetryBudget()}.
+     */
+    private final class Retry {
+
+        private final MigrationData data;
+        private int attempt;
+        private long delays;
+
+        private Retry(MigrationData data) {
+            this.data = data;
+        }
+
+        /**
+         * Report blockers of failed attempt and wait before next attempt.
+         * @param failure failure of attempt
+         * @param connection connection of migration, transaction of attempt is rolled back
+         * @param statements statements of attempt, null if they are unknown
+         * @return true if migration should be retried
+         */
+        private boolean backoff(SQLException failure, Connection connection, List<String> statements) {
+            String state = timeoutState(failure);
+            if (state == null) {
+                return false;
+            }
+
+            if (statements != null) {
+                reportBlockers(data, connection, statements);
+            }
+
+            long backoff = config.getRetryBackoff() << Math.min(attempt, MAX_BACKOFF_SHIFT);
+            // half of delay is random, so nodes failed on the same table don't retry together
+            long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            if (delays + delay > config.getRetryBudget()) {
+                if (config.getRetryBudget() > 0) {
+                    log.error("Retries of evolution '{}' version {} are exhausted after {} attempts.", data.getComponent(), data.getVersion(), attempt + 1);
+                }
+                return false;
+            }
+
+            attempt++;
+            delays += delay;
+            log.warn("Evolution '{}' version {} is failed by {}, retry {} in {} ms.", data.getComponent(), data.getVersion(),
+                state.equals(LOCK_NOT_AVAILABLE) ? "lock timeout" : "statement timeout", attempt, delay);
+            throttle(delay);
+            return true;
+        }
+
+    }
+
+    @FunctionalInterface
+    private interface QueryConsumer {
+
+        void accept(String query) throws SQLException;
+
+    }
+
+    @FunctionalInterface
+    private interface SqlCall {
+
+        long call() throws SQLException;
+
+    }
+
+    /**
+     * Executor of migration statements: statements are sent by JDBC batches,
+     * or one by one if statements must not be batched or statement events are enabled.
+     */
+    private final class StatementRunner implements AutoCloseable {
+
+        private final Statement statement;
+        private final MigrationData data;
+        private final boolean single;
+        private final List<Long> durations;
+        private int index;
+        private int batched;
+        private long rowCount;
+
+        private StatementRunner(Connection connection, MigrationData data, boolean single) throws SQLException {
+            this.statement = connection.createStatement();
+            this.data = data;
+            boolean measured = data != null && config.isStatementEvents();
+            this.single = single || measured;
+            this.durations = measured ? new ArrayList<>() : null;
+        }
+
+        private int getIndex() {
+            return index;
+        }
+
+        private void skip() {
+            index++;
+            if (durations != null) {
+                durations.add(null);
+            }
+        }
+
+        private void add(String query) throws SQLException {
+            if (single) {
+                long start = System.nanoTime();
+                long count = instrument(data, index, query, () -> {
+                    statement.execute(query);
+                    return statement.getUpdateCount();
+                });
+                // index of failed statement is kept, so it could be retried
+                index++;
+                rowCount += Math.max(count, 0);
+                if (durations != null) {
+                    durations.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+                return;
+            }
+
+            index++;
+            statement.addBatch(query);
+            if (++batched == config.getBatchSize()) {
+                flush();
+            }
+        }
+
+        private Execution finish() throws SQLException {
+            flush();
+            return new Execution(rowCount, durations);
+        }
+
+        private void flush() throws SQLException {
+            if (batched == 0) {
+                return;
+            }
+
+            for (int count : statement.executeBatch()) {
+                rowCount += Math.max(count, 0);
+            }
+            batched = 0;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            statement.close();
+        }
+
     }
 
 }
@@ -1,14 +1,13 @@
 package ru.finex.evolution.impl;
 
-import com.google.common.collect.Streams;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 /**
  * @author m0nster.mind
@@ -23,17 +22,130 @@ public class MigrationData {
     private String name;
     private List<String> upQueries = new ArrayList<>();
     private List<String> downQueries = new ArrayList<>();
+    private String checksum;
+    private List<String> resources = new ArrayList<>();
+
+    /**
+     * Up queries are not kept in memory, they are read from resources when migration is applied.
+     */
+    private boolean streamed;
+
+    /**
+     * Migration is marked by {@code # --- !Deferred} directive: it is not required by application code at startup
+     * and could be applied in background.
+     */
+    private boolean deferred;
+
+    /**
+     * Up queries are marked by {@code # --- !Ups nontransactional} directive: they are executed one by one in auto-commit mode,
+     * for example {@code create index concurrently}.
+     */
+    private boolean nontransactional;
+
+    /**
+     * Lock timeout of up queries set by {@code # --- !Ups lock_timeout=5s} directive, null if default timeout is used.
+     * @see ru.finex.evolution.MigrationConfig#getLockTimeout()
+     */
+    private String lockTimeout;
+
+    /**
+     * Statement timeout of up queries set by {@code # --- !Ups statement_timeout=10min} directive, null if default timeout is used.
+     * @see ru.finex.evolution.MigrationConfig#getStatementTimeout()
+     */
+    private String statementTimeout;
+
+    /**
+     * Java migration registered by {@link ru.finex.evolution.ChunkedEvolution}, null for evolution files.
+     */
+    private ChunkedTask chunked;
+
+    /**
+     * Queries are released after checksum is calculated, they are loaded again from resources when migration is applied.
+     * @see MigrationParser#releaseQueries(MigrationData)
+     */
+    private boolean released;
+
+    /**
+     * Checksum of scripts in platform default charset calculated by earlier versions, null if it is not calculated yet.
+     * @see MigrationCatalogue#matches(MigrationData, String)
+     */
+    private String legacyChecksum;
 
     @SuppressWarnings("checkstyle:MissingJavadocMethod")
     public static MigrationData combine(MigrationData o1, MigrationData o2) {
+        return combine(Arrays.asList(o1, o2));
+    }
+
+    /**
+     * Combine migrations of the same version into one migration, queries and resources are appended in order of migrations.
+     * Combined migration is deferred only if all of migrations are deferred and non-transactional if any of them is,
+     * timeouts are taken from the first migration which sets them.
+     * Chunked migration can't be combined.
+     * @param migrations migrations of the same version
+     * @return combined migration without checksum
+     */
+    public static MigrationData combine(List<MigrationData> migrations) {
+        for (MigrationData data : migrations) {
+            if (data.getChunked() != null) {
+                throw new IllegalStateException(String.format(
+                    "Chunked evolution '%s' version %d conflicts with other evolutions of the same version.", data.getComponent(), data.getVersion()
+                ));
+            }
+        }
+
+        boolean streamed = false;
+        boolean deferred = true;
+        boolean nontransactional = false;
+        String lockTimeout = null;
+        String statementTimeout = null;
+        int upCount = 0;
+        int downCount = 0;
+        int resourcesCount = 0;
+        for (MigrationData data : migrations) {
+            streamed |= data.isStreamed();
+            deferred &= data.isDeferred();
+            nontransactional |= data.isNontransactional();
+            lockTimeout = lockTimeout != null ? lockTimeout : data.getLockTimeout();
+            statementTimeout = statementTimeout != null ? statementTimeout : data.getStatementTimeout();
+            upCount += data.getUpQueries().size();
+            downCount += data.getDownQueries().size();
+            resourcesCount += data.getResources().size();
+        }
+
+        StringBuilder name = new StringBuilder();
+        List<String> upQueries = new ArrayList<>(streamed ? 0 : upCount);
+        List<String> downQueries = new ArrayList<>(downCount);
+        List<String> resources = new ArrayList<>(resourcesCount);
+        for (MigrationData data : migrations) {
+            if (name.length() > 0) {
+                name.append('+');
+            }
+            name.append(Optional.ofNullable(data.getName()).orElse("?"));
+
+            if (!streamed) {
+                upQueries.addAll(data.getUpQueries());
+            }
+            downQueries.addAll(data.getDownQueries());
+            resources.addAll(data.getResources());
+        }
+
+        MigrationData first = migrations.get(0);
         return new MigrationData(
-            o1.getComponent(),
-            o1.getVersion(),
-            Optional.ofNullable(o1.getName()).orElse("?") + "+" + Optional.ofNullable(o2.getName()).orElse("?"),
-            Streams.concat(o1.getUpQueries().stream(), o2.getUpQueries().stream())
-                .collect(Collectors.toList()),
-            Streams.concat(o1.getDownQueries().stream(), o2.getDownQueries().stream())
-                .collect(Collectors.toList())
+            first.getComponent(),
+            first.getVersion(),
+            name.toString(),
+            upQueries,
+            downQueries,
+            null,
+            resources,
+            streamed,
+            deferred,
+            nontransactional,
+            lockTimeout,
+            statementTimeout,
+            null,
+            false,
+            null
         );
     }
 
@@ -0,0 +1,398 @@
+package ru.finex.evolution.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.finex.evolution.MigrationConfig;
+import ru.finex.evolution.MigrationEstimate;
+import ru.finex.evolution.MigrationListener;
+import ru.finex.evolution.MigrationPlan;
+import ru.finex.evolution.MigrationProgress;
+import ru.finex.evolution.TransactionMode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Migration of components into a single database (or schema) accessed by {@link MigrationDao}.
+ * @author m0nster.mind
+ */
+@Slf4j
+public class MigrationEngine {
+
+    private final MigrationCatalogue catalogue;
+    private final MigrationDao migrationDao;
+    private final MigrationTree migrationTree;
+    private final MigrationConfig config;
+    private final MigrationListener listener;
+
+    public MigrationEngine(MigrationCatalogue catalogue, MigrationDao migrationDao, MigrationTree migrationTree, MigrationConfig config) {
+        this.catalogue = catalogue;
+        this.migrationDao = migrationDao;
+        this.migrationTree = migrationTree;
+        this.config = config;
+        this.listener = MigrationListeners.create(config.getListeners());
+    }
+
+    /**
+     * Migrate all components.
+     * @param autoRollback rollback changed migrations
+     */
+    public void autoMigration(boolean autoRollback) {
+        autoMigration(autoRollback, true);
+    }
+
+    /**
+     * Migrate all components.
+     * @param autoRollback rollback changed migrations
+     * @param deferred apply deferred migrations, otherwise component is migrated up to its first pending deferred migration
+     * @return components with postponed deferred migrations
+     */
+    public Set<String> autoMigration(boolean autoRollback, boolean deferred) {
+        if (config.isFingerprintCheck() && catalogue.getDeploymentFingerprint().equals(migrationDao.getFingerprint(catalogue.getDeploymentScope()))) {
+            log.debug("Evolutions are up to date.");
+            return Collections.emptySet();
+        }
+
+        List<String> components = migrationTree.getComponents();
+        MigrationState state = migrationDao.loadState(components);
+        MigrationProgressTracker progress = new MigrationProgressTracker(estimate(components, state, deferred));
+        Set<String> postponed = ConcurrentHashMap.newKeySet();
+        run(state, autoRollback, deferred ? null : postponed, progress, migrationTree::applyOperation, migrationTree::applyOperation);
+
+        if (config.isFingerprintCheck() && postponed.isEmpty()) {
+            migrationDao.saveFingerprints(Collections.singletonMap(catalogue.getDeploymentScope(), catalogue.getDeploymentFingerprint()));
+        }
+        return postponed;
+    }
+
+    /**
+     * Migrate component and all of its dependencies.
+     * @param component component
+     * @param autoRollback rollback changed migrations
+     */
+    public void migrate(String component, boolean autoRollback) {
+        List<String> components = new ArrayList<>(migrationTree.getTransitiveDependencies(component));
+        components.add(component);
+        MigrationState state = migrationDao.loadState(components);
+        MigrationProgressTracker progress = new MigrationProgressTracker(estimate(components, state, true));
+        run(state, autoRollback, null, progress,
+            operation -> migrationTree.applyOperation(component, operation),
+            (operation, executor) -> migrationTree.applyOperation(component, operation, executor)
+        );
+    }
+
+    /**
+     * Estimate pending migrations of all components.
+     * @return estimate
+     */
+    public MigrationEstimate estimate() {
+        List<String> components = migrationTree.getComponents();
+        return estimate(components, migrationDao.loadState(components), true);
+    }
+
+    /**
+     * Plan migration of all components without applying it.
+     * @return plan
+     */
+    public MigrationPlan planAll() {
+        return plan(migrationTree.getComponents());
+    }
+
+    /**
+     * Plan migration of component and all of its dependencies without applying it.
+     * @param component component
+     * @return plan
+     */
+    public MigrationPlan plan(String component) {
+        List<String> components = new ArrayList<>(migrationTree.getTransitiveDependencies(component));
+        components.add(component);
+        return plan(components);
+    }
+
+    private MigrationPlan plan(List<String> components) {
+        MigrationState state = migrationDao.loadState(components);
+        Iterator<MigrationEstimate.Version> estimates = estimate(components, state, true).getVersions().iterator();
+        List<MigrationPlan.Step> steps = new ArrayList<>();
+        // statements of plan are executed in transaction of session, it is rolled back on close
+        try (MigrationSession session = migrationDao.openSession()) {
+            for (String component : components) {
+                List<MigrationData> migrations = catalogue.getMigrations(component);
+                List<AppliedMigration> appliedMigrations = state.getMigrations(component);
+                int firstPending = firstPending(migrations, appliedMigrations);
+                if (firstPending < appliedMigrations.size() && firstPending < migrations.size()) {
+                    int version = migrations.get(firstPending).getVersion();
+                    for (Map.Entry<Integer, List<String>> entry : migrationDao.getDownQueries(session, component, version).entrySet()) {
+                        steps.add(new MigrationPlan.Step(component, entry.getKey(), null, MigrationPlan.Action.ROLLBACK, -1,
+                            analyze(session, entry.getValue())));
+                    }
+                }
+
+                for (int i = firstPending; i < migrations.size(); i++) {
+                    // estimate lists pending versions in the same order
+                    MigrationEstimate.Version estimate = estimates.next();
+                    MigrationData data = migrations.get(i);
+                    List<MigrationPlan.Statement> statements = null;
+                    if (!data.isStreamed() && data.getChunked() == null) {
+                        statements = analyze(session, catalogue.load(data).getUpQueries());
+                    }
+                    steps.add(new MigrationPlan.Step(component, data.getVersion(), data.getName(), MigrationPlan.Action.APPLY,
+                        estimate.getDurationNanos(), statements));
+                }
+            }
+        }
+
+        return new MigrationPlan(steps);
+    }
+
+    /**
+     * Explain DML statements and execute statements which change only system catalog in transaction of plan,
+     * so the next statements see schema changed by them. Other statements are never executed.
+     * DML statements are not executed: explain of the next statements doesn't depend on their data.
+     */
+    private List<MigrationPlan.Statement> analyze(MigrationSession session, List<String> queries) {
+        List<MigrationPlan.Statement> statements = new ArrayList<>(queries.size());
+        for (String query : queries) {
+            MigrationPlan.Statement statement = SqlLocks.classify(query);
+            if (statement.isDml()) {
+                migrationDao.explain(session, statement);
+            } else if (statement.getKind() == MigrationPlan.Kind.CATALOG) {
+                migrationDao.simulate(session, statement);
+            }
+            statements.add(statement);
+        }
+        return statements;
+    }
+
+    private MigrationEstimate estimate(List<String> components, MigrationState state, boolean deferred) {
+        List<MigrationData> pending = new ArrayList<>();
+        for (String component : components) {
+            List<MigrationData> migrations = catalogue.getMigrations(component);
+            for (int i = firstPending(migrations, state.getMigrations(component)); i < migrations.size(); i++) {
+                if (!deferred && migrations.get(i).isDeferred()) {
+                    break;
+                }
+                pending.add(migrations.get(i));
+            }
+        }
+
+        MigrationState reference = pending.isEmpty() ? null : loadReference(components);
+        List<MigrationEstimate.Version> versions = new ArrayList<>(pending.size());
+        long knownNanos = 0;
+        int known = 0;
+        for (MigrationData data : pending) {
+            long duration = reference == null ? -1 : referenceDuration(reference, data);
+            if (duration >= 0) {
+                knownNanos += duration;
+                known++;
+            }
+            versions.add(new MigrationEstimate.Version(data.getComponent(), data.getVersion(), data.getName(), duration));
+        }
+
+        // versions without known duration are estimated by average of known ones
+        long duration = known == 0 ? (pending.isEmpty() ? 0 : -1) : knownNanos + knownNanos / known * (pending.size() - known);
+        if (!pending.isEmpty()) {
+            log.info("Pending {} evolutions, estimated duration {}s, {} of them without known duration.",
+                pending.size(), duration < 0 ? "?" : TimeUnit.NANOSECONDS.toSeconds(duration), pending.size() - known);
+        }
+        return new MigrationEstimate(versions, duration);
+    }
+
+    private MigrationState loadReference(List<String> components) {
+        if (config.getDurationSource() == null) {
+            return null;
+        }
+
+        try {
+            return new MigrationDao(config.getDurationSource(), config).loadState(components);
+        } catch (RuntimeException e) {
+            log.warn("Durations of evolutions are not loaded from duration source.", e);
+            return null;
+        }
+    }
+
+    private static long referenceDuration(MigrationState reference, MigrationData data) {
+        for (AppliedMigration applied : reference.getMigrations(data.getComponent())) {
+            // duration of changed evolution is unknown
+            if (applied.getVersion() == data.getVersion() && applied.getChecksum().equals(data.getChecksum()) && applied.getDurationMillis() >= 0) {
+                return TimeUnit.MILLISECONDS.toNanos(applied.getDurationMillis());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Index of the first not applied or changed migration.
+     */
+    private int firstPending(List<MigrationData> migrations, List<AppliedMigration> appliedMigrations) {
+        int count = Math.min(appliedMigrations.size(), migrations.size());
+        for (int i = 0; i < count; i++) {
+            if (!catalogue.matches(migrations.get(i), appliedMigrations.get(i).getChecksum())) {
+                return i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param postponed collects components with postponed deferred migrations, null if deferred migrations are applied
+     */
+    private void run(MigrationState state, boolean autoRollback, Set<String> postponed, MigrationProgressTracker progress,
+        Consumer<Consumer<String>> serial, BiConsumer<Consumer<String>, ExecutorService> concurrent) {
+        if (config.getParallelism() <= 1 || config.getTransactionMode() == TransactionMode.PLAN) {
+            // not committed changes are rolled back by session on failure
+            try (MigrationSession session = migrationDao.openSession()) {
+                serial.accept(component -> doMigration(component, state, autoRollback, postponed, progress, session));
+                migrationDao.commit(session);
+            }
+            return;
+        }
+
+        ExecutorService executor = MigrationExecutors.newBoundedExecutor(config.getParallelism(), "evolution");
+        try {
+            concurrent.accept(component -> {
+                try (MigrationSession session = migrationDao.openSession()) {
+                    doMigration(component, state, autoRollback, postponed, progress, session);
+                    migrationDao.commit(session);
+                }
+            }, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void doMigration(String component, MigrationState snapshot, boolean autoRollback, Set<String> postponed,
+        MigrationProgressTracker progress, MigrationSession session) {
+        listener.componentStarted(component);
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            migrateComponent(component, snapshot, autoRollback, postponed, progress, session);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            listener.componentCompleted(component, System.nanoTime() - start, failure);
+        }
+    }
+
+    private void migrateComponent(String component, MigrationState snapshot, boolean autoRollback, Set<String> postponed,
+        MigrationProgressTracker progress, MigrationSession session) {
+        String fingerprint = catalogue.getFingerprint(component);
+        if (config.isFingerprintCheck() && fingerprint.equals(snapshot.getFingerprint(component))) {
+            return; // all migrations are applied
+        }
+
+        MigrationState state = snapshot;
+        if (config.isDistributedLock()) {
+            migrationDao.lock(session, component);
+            // component could be migrated by another node while lock is awaited
+            state = migrationDao.loadState(session, Collections.singletonList(component));
+            if (config.isFingerprintCheck() && fingerprint.equals(state.getFingerprint(component))) {
+                release(session, component);
+                return;
+            }
+        }
+
+        List<MigrationData> migrations = catalogue.getMigrations(component);
+        List<AppliedMigration> appliedMigrations = state.getMigrations(component);
+
+        int firstPending = firstPending(migrations, appliedMigrations);
+        if (firstPending < appliedMigrations.size() && firstPending < migrations.size()) {
+            MigrationData data = migrations.get(firstPending);
+            log.error("Detect evolution changes: '{}' version {}. Current checksum '{}', new checksum '{}'",
+                component, data.getVersion(), appliedMigrations.get(firstPending).getChecksum(), data.getChecksum());
+
+            if (autoRollback) {
+                log.warn("Rollback evolutions {}+ for '{}'.", data.getVersion(), component);
+                migrationDao.rollbackAndDeleteRecursive(session, component, data.getVersion());
+                if (config.getTransactionMode() == TransactionMode.VERSION) {
+                    migrationDao.commit(session);
+                }
+            } else {
+                throw new RuntimeException(String.format(
+                    "Evolution %s has changes!",
+                    Optional.ofNullable(data.getName())
+                        .orElseGet(() -> getEvolutionFilename(data))
+                ));
+            }
+        }
+
+        int lastPending = migrations.size();
+        if (postponed != null) {
+            for (int i = firstPending; i < migrations.size(); i++) {
+                if (migrations.get(i).isDeferred()) {
+                    // next versions could depend on deferred one, so they are postponed too
+                    log.info("Postpone deferred evolutions {}+ for '{}'.", migrations.get(i).getVersion(), component);
+                    postponed.add(component);
+                    lastPending = i;
+                    break;
+                }
+            }
+        }
+
+        // next migrations are prepared while current one is applied
+        MigrationPipeline.run(
+            migrations.subList(firstPending, lastPending),
+            data -> migrationDao.prepare(catalogue.load(data), data.getChecksum()),
+            migration -> applyVersion(session, migration, progress),
+            config.getPipelineDepth(),
+            "evolution-prepare"
+        );
+
+        if (config.isFingerprintCheck() && lastPending == migrations.size()) {
+            migrationDao.saveFingerprints(session, Collections.singletonMap(component, fingerprint));
+        }
+
+        if (config.getTransactionMode() != TransactionMode.PLAN) {
+            migrationDao.commit(session);
+        }
+        release(session, component);
+    }
+
+    private void applyVersion(MigrationSession session, PreparedMigration migration, MigrationProgressTracker progress) {
+        MigrationData data = migration.getData();
+        listener.versionStarted(data.getComponent(), data.getVersion());
+        long start = System.nanoTime();
+        long rowCount = -1;
+        Throwable failure = null;
+        try {
+            rowCount = migrationDao.applyAndSave(session, migration);
+            if (config.getTransactionMode() == TransactionMode.VERSION) {
+                migrationDao.commit(session);
+            }
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            listener.versionCompleted(data.getComponent(), data.getVersion(), System.nanoTime() - start, rowCount, failure);
+        }
+
+        MigrationProgress state = progress.complete(data.getComponent(), data.getVersion());
+        if (state != null) {
+            log.info("Evolutions progress {}% ({}/{} versions), remaining {}s.", String.format("%.1f", state.getPercent()),
+                state.getCompletedVersions(), state.getTotalVersions(), TimeUnit.NANOSECONDS.toSeconds(state.getRemainingNanos()));
+            listener.progress(state);
+        }
+    }
+
+    private void release(MigrationSession session, String component) {
+        // lock of plan transaction is held until session is closed
+        if (config.isDistributedLock() && config.getTransactionMode() != TransactionMode.PLAN) {
+            migrationDao.unlock(session, component);
+        }
+    }
+
+    private String getEvolutionFilename(MigrationData data) {
+        return data.getComponent() + "_" + data.getVersion();
+    }
+
+}
@@ -0,0 +1,137 @@
+package ru.finex.evolution.impl;
+
+import lombok.experimental.UtilityClass;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Executors used by migration service.
+ * Virtual threads are used when runtime supports it (Java 21+), otherwise daemon platform threads.
+ * @author m0nster.mind
+ */
+@UtilityClass
+public class MigrationExecutors {
+
+    private static final MethodHandle VIRTUAL_FACTORY = findVirtualFactory();
+
+    /**
+     * Create executor with a fixed count of workers.
+     * @param parallelism max count of tasks executed at the same time
+     * @param name thread name prefix
+     * @return executor, must be shut down by caller
+     */
+    public static ExecutorService newBoundedExecutor(int parallelism, String name) {
+        return Executors.newFixedThreadPool(parallelism, newThreadFactory(name));
+    }
+
+    /**
+     * Apply function to every value concurrently.
+     * If function fails, not started tasks are cancelled and failure is rethrown.
+     * @param values values
+     * @param function function
+     * @param parallelism max count of values processed at the same time, {@code 1} processes values in the caller thread
+     * @param name thread name prefix
+     * @param <T> value type
+     * @param <R> result type
+     * @return results in order of values
+     */
+    public static <T, R> List<R> map(List<T> values, Function<T, R> function, int parallelism, String name) {
+        if (parallelism <= 1 || values.size() <= 1) {
+            return values.stream()
+                .map(function)
+                .collect(Collectors.toList());
+        }
+
+        ExecutorService executor = newBoundedExecutor(Math.min(parallelism, values.size()), name);
+        List<Future<R>> futures = new ArrayList<>(values.size());
+        try {
+            for (T value : values) {
+                futures.add(executor.submit(() -> function.apply(value)));
+            }
+
+            List<R> result = new ArrayList<>(values.size());
+            for (Future<R> future : futures) {
+                result.add(await(future));
+            }
+            return result;
+        } finally {
+            futures.forEach(future -> future.cancel(false));
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Await result of task, failure of task is rethrown as is if it is unchecked.
+     * @param future task
+     * @param <T> result type
+     * @return result
+     */
+    public static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Create thread factory, virtual threads factory if it available.
+     * @param name thread name prefix
+     * @return thread factory
+     */
+    public static ThreadFactory newThreadFactory(String name) {
+        if (VIRTUAL_FACTORY != null) {
+            try {
+                return (ThreadFactory) VIRTUAL_FACTORY.invoke(name + "-", 0L);
+            } catch (Throwable e) {
+                // fallback to platform threads
+            }
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static MethodHandle findVirtualFactory() {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Class<?> virtualBuilderType = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            MethodHandle ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilderType));
+            MethodHandle name = lookup.findVirtual(virtualBuilderType, "name",
+                MethodType.methodType(virtualBuilderType, String.class, long.class));
+            MethodHandle factory = lookup.findVirtual(builderType, "factory", MethodType.methodType(ThreadFactory.class));
+
+            // (prefix, start) -> Thread.ofVirtual().name(prefix, start).factory()
+            MethodHandle named = MethodHandles.foldArguments(name, MethodHandles.dropArguments(ofVirtual, 0, String.class, long.class));
+            return MethodHandles.filterReturnValue(named, factory.asType(MethodType.methodType(ThreadFactory.class, virtualBuilderType)));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package ru.finex.evolution.impl;
+
+import jdk.jfr.FlightRecorder;
+import lombok.extern.slf4j.Slf4j;
+import ru.finex.evolution.MigrationListener;
+import ru.finex.evolution.MigrationProgress;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Composite of listeners registered by config and JFR listener, failure of a listener is logged and doesn't break migration.
+ * @author m0nster.mind
+ */
+@Slf4j
+public final class MigrationListeners implements MigrationListener {
+
+    private static final String JFR_EVENT = "jdk.jfr.Event";
+
+    private final MigrationListener[] listeners;
+
+    private MigrationListeners(List<MigrationListener> listeners) {
+        this.listeners = listeners.toArray(new MigrationListener[0]);
+    }
+
+    /**
+     * Create composite listener.
+     * @param listeners registered listeners
+     * @return composite listener, JFR listener is included if runtime supports JFR
+     */
+    public static MigrationListener create(List<MigrationListener> listeners) {
+        return create(listeners, isJfrAvailable(JFR_EVENT));
+    }
+
+    static MigrationListener create(List<MigrationListener> listeners, boolean jfr) {
+        List<MigrationListener> result = new ArrayList<>(listeners);
+        if (jfr) {
+            result.add(new JfrMigrationListener());
+        } else {
+            log.debug("JFR is not supported by runtime, migration events are not recorded.");
+        }
+
+        return new MigrationListeners(result);
+    }
+
+    /**
+     * Check that JFR module is present and recording is available.
+     * Classes of JFR are resolved lazily by first event, so they are probed before JFR listener is registered.
+     * @param eventClass name of JFR event class
+     * @return true if JFR events can be recorded
+     */
+    static boolean isJfrAvailable(String eventClass) {
+        try {
+            Class.forName(eventClass, false, MigrationListeners.class.getClassLoader());
+            return FlightRecorder.isAvailable();
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    int size() {
+        return listeners.length;
+    }
+
+    @Override
+    public void componentStarted(String component) {
+        notify(listener -> listener.componentStarted(component));
+    }
+
+    @Override
+    public void componentCompleted(String component, long durationNanos, Throwable failure) {
+        notify(listener -> listener.componentCompleted(component, durationNanos, failure));
+    }
+
+    @Override
+    public void versionStarted(String component, int version) {
+        notify(listener -> listener.versionStarted(component, version));
+    }
+
+    @Override
+    public void versionCompleted(String component, int version, long durationNanos, long rowCount, Throwable failure) {
+        notify(listener -> listener.versionCompleted(component, version, durationNanos, rowCount, failure));
+    }
+
+    @Override
+    public void statementStarted(String component, int version, int index, String statement) {
+        notify(listener -> listener.statementStarted(component, version, index, statement));
+    }
+
+    @Override
+    public void statementCompleted(String component, int version, int index, String statement, long durationNanos, long rowCount,
+        Throwable failure) {
+        notify(listener -> listener.statementCompleted(component, version, index, statement, durationNanos, rowCount, failure));
+    }
+
+    @Override
+    public void progress(MigrationProgress progress) {
+        notify(listener -> listener.progress(progress));
+    }
+
+    private void notify(Consumer<MigrationListener> event) {
+        for (MigrationListener listener : listeners) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException | LinkageError e) {
+                log.warn("Migration listener {} failed.", listener.getClass().getName(), e);
+            }
+        }
+    }
+
+}
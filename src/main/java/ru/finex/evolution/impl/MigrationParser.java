@@ -4,117 +4,491 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimaps;
 import lombok.RequiredArgsConstructor;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
+import lombok.extern.slf4j.Slf4j;
+import ru.finex.evolution.ChunkedEvolution;
+import ru.finex.evolution.ChunkedMigration;
 import ru.finex.evolution.ClasspathScanner;
+import ru.finex.evolution.MigrationConfig;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 /**
  * @author m0nster.mind
  */
+@Slf4j
 @Singleton
 @RequiredArgsConstructor(onConstructor_ = { @Inject })
 public class MigrationParser {
 
     private static final Pattern FILE_PATTERN = Pattern.compile("([\\w\\d]+)_(\\d+)(?>_([\\w\\d_\\-]+))?\\.sql");
-    private static final Pattern UP_PATTERN = Pattern.compile("#\\s*---\\s*!Ups\\s*");
-    private static final Pattern DOWN_PATTERN = Pattern.compile("#\\s*---\\s*!Downs\\s*");
-    private static final Pattern PROCEDURE = Pattern.compile(";;");
-    private static final Pattern END_QUERY = Pattern.compile(";");
 
     private final ClasspathScanner scanner;
+    private final MigrationConfig config;
 
-    @SuppressWarnings("checkstyle:MissingJavadocMethod")
+    /**
+     * Parse all migrations, grouped by component and ordered by version.
+     * Migrations from bundles are used as is, resources which are not bundled are parsed and checksummed concurrently.
+     * @return migrations
+     * @see MigrationBundleCompiler
+     */
     public ListMultimap<String, MigrationData> parseAll() {
-        return scanner.getResources(FILE_PATTERN)
+        List<MigrationData> migrations = loadBundles();
+        Set<String> bundledResources = migrations.stream()
+            .flatMap(data -> data.getResources().stream())
+            .collect(Collectors.toSet());
+
+        List<String> resources = scanner.getResources(FILE_PATTERN)
             .stream()
-            .map(this::createMigration)
+            .filter(resource -> !bundledResources.contains(resource))
+            .sorted()
+            .collect(Collectors.toList());
+        migrations.addAll(MigrationExecutors.map(resources, this::createMigration, config.getParserParallelism(), "evolution-parser"));
+        getChunkedTypes().stream()
+            .map(MigrationParser::createChunkedMigration)
+            .forEach(migrations::add);
+
+        return group(migrations);
+    }
+
+    /**
+     * Chunked evolution classes found by classpath scanning and merged with {@link EvolutionRegistry},
+     * only registry is used if {@link MigrationConfig#isRegistryOnly()} is set.
+     */
+    private Collection<Class<?>> getChunkedTypes() {
+        ClassLoader classLoader = getClass().getClassLoader();
+        Set<Class<?>> types = new LinkedHashSet<>();
+        if (config.isRegistryOnly()) {
+            EvolutionRegistry.requirePresent(classLoader);
+        } else {
+            types.addAll(scanner.getTypesAnnotatedWith(ChunkedEvolution.class));
+        }
+
+        for (String name : EvolutionRegistry.loadChunked(classLoader)) {
+            try {
+                types.add(Class.forName(name, true, classLoader));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Chunked evolution from registry is not found: " + name, e);
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Group migrations by component, join migrations with the same version and calculate checksums.
+     * @param migrations migrations
+     * @return migrations grouped by component and ordered by version
+     */
+    public static ListMultimap<String, MigrationData> group(Collection<MigrationData> migrations) {
+        ClassLoader classLoader = MigrationParser.class.getClassLoader();
+        return group(migrations, resource -> openResource(classLoader, resource));
+    }
+
+    /**
+     * Group migrations by component, join migrations with the same version and calculate checksums.
+     * Checksum of version joined from several scripts is calculated by reading its scripts again.
+     * @param migrations migrations
+     * @param opener opener of evolution resources
+     * @return migrations grouped by component and ordered by version
+     */
+    public static ListMultimap<String, MigrationData> group(Collection<MigrationData> migrations, ResourceOpener opener) {
+        ListMultimap<String, MigrationData> migrationMultimap = migrations.stream()
             .collect(Multimaps.toMultimap(
                 MigrationData::getComponent,
                 Function.identity(),
                 ArrayListMultimap::create
             ));
+
+        MessageDigest digest = MigrationChecksums.getDigest();
+        for (String component : new ArrayList<>(migrationMultimap.keySet())) {
+            List<MigrationData> componentMigrations = migrationMultimap.get(component);
+            List<MigrationData> joined = joinVersions(componentMigrations, opener);
+            for (MigrationData data : joined) {
+                if (data.getChecksum() == null) {
+                    data.setChecksum(MigrationChecksums.calculateChecksum(digest, data));
+                }
+            }
+            componentMigrations.clear();
+            componentMigrations.addAll(joined);
+        }
+
+        return migrationMultimap;
     }
 
-    private MigrationData createMigration(String resourcePath) {
-        MigrationData data = new MigrationData();
-        fillMigrationMetaInformation(data, resourcePath);
-        parseQueries(data, resourcePath);
-        return data;
+    /**
+     * Join migrations with the same version in a single pass over migrations sorted by version.
+     * Sort key is a version in high bits and position in low bits, so migrations of the same version keep their order.
+     * Joined migration is checksummed by its scripts if all of its parts are parsed from scripts (they have checksums).
+     */
+    private static List<MigrationData> joinVersions(List<MigrationData> migrations, ResourceOpener opener) {
+        long[] keys = new long[migrations.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((long) migrations.get(i).getVersion() << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        List<MigrationData> result = new ArrayList<>(keys.length);
+        List<MigrationData> sameVersion = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            sameVersion.add(migrations.get((int) keys[i]));
+            if (i + 1 == keys.length || (keys[i + 1] >>> 32) != (keys[i] >>> 32)) {
+                result.add(sameVersion.size() == 1 ? sameVersion.get(0) : join(sameVersion, opener));
+                sameVersion.clear();
+            }
+        }
+
+        return result;
     }
 
-    private void fillMigrationMetaInformation(MigrationData data, String resourcePath) {
-        Matcher matcher = FILE_PATTERN.matcher(resourcePath);
-        if (!matcher.find()) {
-            throw new RuntimeException("Invalid evolution name: " + resourcePath);
+    private static MigrationData join(List<MigrationData> migrations, ResourceOpener opener) {
+        MigrationData result = MigrationData.combine(migrations);
+        if (migrations.stream().allMatch(data -> data.getChecksum() != null)) {
+            result.setChecksum(calculateChecksum(result.getResources(), opener));
         }
+        return result;
+    }
 
-        data.setComponent(matcher.group(1));
-        data.setVersion(Integer.parseInt(matcher.group(2)));
-        data.setName(matcher.group(3));
+    /**
+     * Calculate checksum of version by its scripts.
+     * @param resources scripts of version
+     * @param opener opener of evolution resources
+     * @return checksum
+     */
+    private static String calculateChecksum(List<String> resources, ResourceOpener opener) {
+        return calculateChecksum(resources, opener, StandardCharsets.UTF_8);
+    }
+
+    private static String calculateChecksum(List<String> resources, ResourceOpener opener, Charset charset) {
+        ScriptChecksum checksum = new ScriptChecksum(MigrationChecksums.getDigest(), charset);
+        for (String resource : resources) {
+            try (Reader reader = opener.open(resource)) {
+                checksum.update(reader);
+            } catch (IOException e) {
+                throw new RuntimeException("Fail to read evolution: " + resource, e);
+            }
+        }
+        return checksum.complete();
     }
 
-    private void parseQueries(MigrationData data, String resourcePath) {
-        String content;
+    private List<MigrationData> loadBundles() {
+        ClassLoader classLoader = getClass().getClassLoader();
+        List<MigrationData> result = new ArrayList<>();
         try {
-            content = IOUtils.resourceToString(resourcePath, StandardCharsets.UTF_8, this.getClass().getClassLoader());
+            Enumeration<URL> bundles = classLoader.getResources(MigrationConsts.BUNDLE_RESOURCE);
+            while (bundles.hasMoreElements()) {
+                URL bundle = bundles.nextElement();
+                List<MigrationData> migrations = MigrationBundle.read(MigrationBundle.load(bundle));
+                if (isStale(bundle, migrations, classLoader)) {
+                    log.warn("Evolution bundle {} is older than evolutions, bundle is ignored.", bundle);
+                    continue;
+                }
+
+                migrations.stream()
+                    .filter(data -> MigrationBundle.sizeOf(data.getUpQueries()) > config.getStreamingThreshold())
+                    .forEach(data -> {
+                        data.setStreamed(true);
+                        data.setUpQueries(new ArrayList<>());
+                    });
+                result.addAll(migrations);
+            }
         } catch (IOException e) {
-            throw new RuntimeException("Fail to read evolution: " + resourcePath, e);
+            throw new RuntimeException("Fail to read evolution bundle", e);
         }
 
-        List<String> queries = data.getUpQueries();
-        StringBuilder query = new StringBuilder();
-        String[] lines = content.split("(\r\n)|\r|\n");
-        for (int i = 0; i < lines.length; i++) {
-            String line = lines[i];
+        return result;
+    }
 
-            if (UP_PATTERN.matcher(line).matches()) {
-                if (query.length() != 0) {
-                    queries.add(query.toString());
-                    query.setLength(0);
-                }
-                queries = data.getUpQueries();
-            } else if (DOWN_PATTERN.matcher(line).matches()) {
-                if (query.length() != 0) {
-                    queries.add(query.toString());
-                    query.setLength(0);
+    private static boolean isStale(URL bundle, List<MigrationData> migrations, ClassLoader classLoader) {
+        File bundleFile = MigrationBundle.toFile(bundle);
+        if (bundleFile == null) {
+            return false; // packaged together with evolutions
+        }
+
+        long lastModified = bundleFile.lastModified();
+        return migrations.stream()
+            .flatMap(data -> data.getResources().stream())
+            .map(classLoader::getResource)
+            .anyMatch(resource -> {
+                if (resource == null) {
+                    return true;
                 }
-                queries = data.getDownQueries();
-            }
 
-            if (StringUtils.isBlank(line) || line.charAt(0) == '#') {
-                continue;
+                File file = MigrationBundle.toFile(resource);
+                return file != null && file.lastModified() > lastModified;
+            });
+    }
+
+    private MigrationData createMigration(String resourcePath) {
+        ClassLoader classLoader = getClass().getClassLoader();
+        try (Reader reader = openResource(classLoader, resourcePath)) {
+            if (getResourceSize(classLoader, resourcePath) > config.getStreamingThreshold()) {
+                return createStreamedMigration(resourcePath, reader);
             }
 
-            boolean endQuery = false;
-            Matcher procedureMatcher = PROCEDURE.matcher(line);
-            Matcher endQueryMatcher = END_QUERY.matcher(line);
-            if (procedureMatcher.find()) {
-                line = procedureMatcher.replaceAll(";");
-            } else if (endQueryMatcher.find()) {
-                line = endQueryMatcher.replaceFirst("");
-                endQuery = true;
+            return createMigration(resourcePath, reader);
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to read evolution: " + resourcePath, e);
+        }
+    }
+
+    private static long getResourceSize(ClassLoader classLoader, String resourcePath) throws IOException {
+        URL url = classLoader.getResource(resourcePath);
+        File file = MigrationBundle.toFile(url);
+        if (file != null) {
+            return file.length();
+        }
+
+        return url.openConnection().getContentLengthLong();
+    }
+
+    /**
+     * Open UTF-8 reader of evolution resource, file resources are read through file channel.
+     * @param classLoader class loader
+     * @param resourcePath path to evolution resource
+     * @return reader
+     * @throws IOException read error
+     */
+    public static Reader openResource(ClassLoader classLoader, String resourcePath) throws IOException {
+        URL url = classLoader.getResource(resourcePath);
+        if (url == null) {
+            throw new RuntimeException("Evolution not found: " + resourcePath);
+        }
+
+        File file = MigrationBundle.toFile(url);
+        ReadableByteChannel channel = file != null
+            ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+            : Channels.newChannel(url.openStream());
+        return Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE), -1);
+    }
+
+    /**
+     * Parse migration.
+     * @param resourcePath path to migration resource
+     * @param reader migration content
+     * @return migration with checksum of script
+     * @throws IOException read error
+     * @see ScriptChecksum
+     */
+    public static MigrationData createMigration(String resourcePath, Reader reader) throws IOException {
+        MigrationData data = new MigrationData();
+        data.getResources().add(resourcePath);
+        fillMigrationMetaInformation(data, resourcePath);
+        ScriptChecksum checksum = new ScriptChecksum(MigrationChecksums.getDigest());
+        parseQueries(data, new SqlLexer(checksum.wrap(reader)));
+        data.setChecksum(checksum.complete());
+        return data;
+    }
+
+    /**
+     * Parse streamed migration: down queries are kept, up queries are only checksummed.
+     * @param resourcePath path to migration resource
+     * @param reader migration content
+     * @return migration
+     * @throws IOException read error
+     */
+    public static MigrationData createStreamedMigration(String resourcePath, Reader reader) throws IOException {
+        MigrationData data = new MigrationData();
+        data.getResources().add(resourcePath);
+        data.setStreamed(true);
+        fillMigrationMetaInformation(data, resourcePath);
+
+        ScriptChecksum checksum = new ScriptChecksum(MigrationChecksums.getDigest());
+        SqlLexer lexer = new SqlLexer(checksum.wrap(reader));
+        for (SqlLexer.Statement statement = lexer.next(); statement != null; statement = lexer.next()) {
+            if (statement.getSection() == SqlLexer.Section.DOWN) {
+                data.getDownQueries().add(statement.getText());
             }
+        }
+
+        data.setChecksum(checksum.complete());
+        data.setDeferred(lexer.isDeferred());
+        data.setNontransactional(lexer.isNontransactional());
+        data.setLockTimeout(lexer.getLockTimeout());
+        data.setStatementTimeout(lexer.getStatementTimeout());
+        return data;
+    }
+
+    /**
+     * Release queries of migration parsed from resources or read from bundle, only metadata and checksum are kept.
+     * Queries of memory-mapped bundle are not released: they are not decoded until accessed and don't retain memory of heap,
+     * bundle read into memory (for example from jar) is released with its queries.
+     * Streamed and chunked migrations are not released: streamed up queries are not kept, chunked migration has no queries.
+     * @param data migration with checksum
+     * @see #loadQueries(MigrationData)
+     */
+    public static void releaseQueries(MigrationData data) {
+        if (data.isStreamed() || data.getChunked() != null || MigrationBundle.isMapped(data.getUpQueries())) {
+            return;
+        }
+
+        data.setUpQueries(Collections.emptyList());
+        data.setDownQueries(Collections.emptyList());
+        data.setReleased(true);
+    }
 
-            query.append(line);
+    /**
+     * Load released queries of migration from its resources.
+     * @param data migration
+     * @return migration with queries, the same migration if queries are not released
+     * @throws IllegalStateException resources are changed after migration was parsed
+     */
+    public MigrationData loadQueries(MigrationData data) {
+        if (!data.isReleased()) {
+            return data;
+        }
 
-            if (endQuery) {
-                queries.add(query.toString());
-                query.setLength(0);
+        ClassLoader classLoader = getClass().getClassLoader();
+        List<MigrationData> parts = new ArrayList<>(data.getResources().size());
+        for (String resource : data.getResources()) {
+            try (Reader reader = openResource(classLoader, resource)) {
+                parts.add(createMigration(resource, reader));
+            } catch (IOException e) {
+                throw new RuntimeException("Fail to read evolution: " + resource, e);
             }
         }
 
-        if (query.length() != 0) {
-            queries.add(query.toString());
+        MigrationData result = parts.size() == 1
+            ? parts.get(0)
+            : join(parts, resource -> openResource(classLoader, resource));
+        if (!result.getChecksum().equals(data.getChecksum())) {
+            throw new IllegalStateException(String.format(
+                "Evolution %s is changed after it was parsed.", data.getResources()
+            ));
+        }
+
+        return result;
+    }
+
+    /**
+     * Calculate checksum of migration scripts the way earlier versions did: lines are digested in platform default charset.
+     * It differs from checksum of migration only if scripts contain non-ASCII characters and default charset is not UTF-8.
+     * @param data migration
+     * @return legacy checksum, checksum of migration if it is not parsed from scripts
+     */
+    public String calculateLegacyChecksum(MigrationData data) {
+        ClassLoader classLoader = getClass().getClassLoader();
+        return calculateLegacyChecksum(data, resource -> openResource(classLoader, resource), Charset.defaultCharset());
+    }
+
+    static String calculateLegacyChecksum(MigrationData data, ResourceOpener opener, Charset charset) {
+        if (data.getChunked() != null || StandardCharsets.UTF_8.equals(charset)) {
+            return data.getChecksum();
+        }
+
+        return calculateChecksum(data.getResources(), opener, charset);
+    }
+
+    /**
+     * Create migration registered by {@link ChunkedEvolution}.
+     * Checksum is calculated from class name only: chunk size and throttle are tuning like timeouts and can be changed,
+     * changes of class code are not detected.
+     * @param type type annotated by {@link ChunkedEvolution}
+     * @return migration with checksum
+     */
+    public static MigrationData createChunkedMigration(Class<?> type) {
+        ChunkedEvolution evolution = type.getAnnotation(ChunkedEvolution.class);
+        if (evolution == null || !ChunkedMigration.class.isAssignableFrom(type)) {
+            throw new IllegalStateException(String.format(
+                "Chunked evolution %s must be annotated by @ChunkedEvolution and implement ChunkedMigration.", type.getName()
+            ));
+        }
+
+        if (evolution.chunkSize() <= 0) {
+            throw new IllegalStateException("Chunk size of evolution " + type.getName() + " must be positive.");
+        }
+
+        ChunkedMigration migration;
+        try {
+            migration = (ChunkedMigration) type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Fail to create chunked evolution: " + type.getName(), e);
+        }
+
+        MigrationData data = new MigrationData();
+        data.setComponent(evolution.component());
+        data.setVersion(evolution.version());
+        data.setName(evolution.name().isEmpty() ? type.getSimpleName() : evolution.name());
+        data.getResources().add(type.getName());
+        data.setChunked(new ChunkedTask(migration, evolution.chunkSize(), evolution.throttle()));
+
+        MessageDigest digest = MigrationChecksums.getDigest();
+        digest.reset();
+        MigrationChecksums.update(digest, "chunked " + type.getName());
+        data.setChecksum(MigrationChecksums.complete(digest));
+        return data;
+    }
+
+    /**
+     * Check resource name is a migration file name.
+     * @param name resource name
+     * @return true if resource is a migration
+     */
+    public static boolean isMigration(String name) {
+        return FILE_PATTERN.matcher(name).matches();
+    }
+
+    /**
+     * Opener of evolution resources.
+     */
+    @FunctionalInterface
+    public interface ResourceOpener {
+
+        /**
+         * Open UTF-8 reader of evolution resource.
+         * @param resource path to evolution resource
+         * @return reader
+         * @throws IOException read error
+         */
+        Reader open(String resource) throws IOException;
+
+    }
+
+    private static void fillMigrationMetaInformation(MigrationData data, String resourcePath) {
+        Matcher matcher = FILE_PATTERN.matcher(resourcePath);
+        if (!matcher.find()) {
+            throw new RuntimeException("Invalid evolution name: " + resourcePath);
+        }
+
+        data.setComponent(matcher.group(1));
+        data.setVersion(Integer.parseInt(matcher.group(2)));
+        data.setName(matcher.group(3));
+    }
+
+    private static void parseQueries(MigrationData data, SqlLexer lexer) throws IOException {
+        for (SqlLexer.Statement statement = lexer.next(); statement != null; statement = lexer.next()) {
+            List<String> queries = statement.getSection() == SqlLexer.Section.UP ? data.getUpQueries() : data.getDownQueries();
+            queries.add(statement.getText());
         }
+        data.setDeferred(lexer.isDeferred());
+        data.setNontransactional(lexer.isNontransactional());
+        data.setLockTimeout(lexer.getLockTimeout());
+        data.setStatementTimeout(lexer.getStatementTimeout());
     }
 
 }
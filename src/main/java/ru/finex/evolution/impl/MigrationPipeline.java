@@ -0,0 +1,113 @@
+package ru.finex.evolution.impl;
+
+import lombok.experimental.UtilityClass;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Two stage pipeline: values are prepared by a background thread while previously prepared values are applied
+ * by the caller thread. Stages are connected by a bounded queue, so at most {@code depth + 2} prepared values exist at once.
+ * @author m0nster.mind
+ */
+@UtilityClass
+public class MigrationPipeline {
+
+    /**
+     * Prepare and apply values in order.
+     * If any stage fails, the other stage is stopped and failure is rethrown.
+     * @param values values
+     * @param prepare preparation stage, executed in background thread
+     * @param apply apply stage, executed in caller thread
+     * @param depth capacity of queue between stages, {@code 0} executes both stages in caller thread
+     * @param name thread name prefix
+     * @param <T> value type
+     * @param <R> prepared value type
+     */
+    public static <T, R> void run(List<T> values, Function<T, R> prepare, Consumer<R> apply, int depth, String name) {
+        if (depth <= 0 || values.size() <= 1) {
+            for (T value : values) {
+                apply.accept(prepare.apply(value));
+            }
+            return;
+        }
+
+        BlockingQueue<Stage<R>> queue = new ArrayBlockingQueue<>(depth);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Thread producer = MigrationExecutors.newThreadFactory(name).newThread(() -> produce(values, prepare, queue, cancelled));
+        producer.start();
+
+        try {
+            for (int i = 0; i < values.size(); i++) {
+                Stage<R> stage = take(queue);
+                if (stage.failure != null) {
+                    if (stage.failure instanceof RuntimeException) {
+                        throw (RuntimeException) stage.failure;
+                    }
+                    throw new RuntimeException(stage.failure);
+                }
+
+                apply.accept(stage.value);
+            }
+        } finally {
+            cancelled.set(true);
+            producer.interrupt();
+            join(producer);
+        }
+    }
+
+    private static <T, R> void produce(List<T> values, Function<T, R> prepare, BlockingQueue<Stage<R>> queue, AtomicBoolean cancelled) {
+        try {
+            for (T value : values) {
+                if (cancelled.get()) {
+                    return;
+                }
+
+                Stage<R> stage;
+                try {
+                    stage = new Stage<>(prepare.apply(value), null);
+                } catch (RuntimeException | Error e) {
+                    queue.put(new Stage<>(null, e));
+                    return;
+                }
+                queue.put(stage);
+            }
+        } catch (InterruptedException e) {
+            // apply stage is finished
+        }
+    }
+
+    private static <R> Stage<R> take(BlockingQueue<Stage<R>> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Stage<R> {
+
+        private final R value;
+        private final Throwable failure;
+
+        private Stage(R value, Throwable failure) {
+            this.value = value;
+            this.failure = failure;
+        }
+
+    }
+
+}
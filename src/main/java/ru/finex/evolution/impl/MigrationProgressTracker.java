@@ -0,0 +1,75 @@
+package ru.finex.evolution.impl;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+import ru.finex.evolution.MigrationEstimate;
+import ru.finex.evolution.MigrationProgress;
+
+/**
+ * Progress of migration run: every pending version is weighted by its estimated duration,
+ * versions without known duration are weighted by average duration of known ones.
+ * Thread-safe, versions of different components are completed concurrently.
+ * @author m0nster.mind
+ */
+public class MigrationProgressTracker {
+
+    private final Table<String, Integer, Long> weights = HashBasedTable.create();
+    private final int totalVersions;
+    private final long totalWeight;
+    private final boolean estimated;
+    private final long start = System.nanoTime();
+    private int completedVersions;
+    private long completedWeight;
+
+    public MigrationProgressTracker(MigrationEstimate estimate) {
+        estimated = estimate.getDurationNanos() >= 0;
+        long knownNanos = 0;
+        int known = 0;
+        for (MigrationEstimate.Version version : estimate.getVersions()) {
+            if (version.getDurationNanos() >= 0) {
+                knownNanos += version.getDurationNanos();
+                known++;
+            }
+        }
+
+        long average = known == 0 ? 0 : knownNanos / known;
+        long total = 0;
+        for (MigrationEstimate.Version version : estimate.getVersions()) {
+            // durations are stored in milliseconds, so fast versions have zero duration
+            long weight = !estimated ? 1 : Math.max(version.getDurationNanos() >= 0 ? version.getDurationNanos() : average, 1);
+            weights.put(version.getComponent(), version.getVersion(), weight);
+            total += weight;
+        }
+
+        totalVersions = estimate.getVersions().size();
+        totalWeight = total;
+    }
+
+    /**
+     * Complete version.
+     * @param component component
+     * @param version version
+     * @return progress after version, null if version is not pending
+     */
+    public synchronized MigrationProgress complete(String component, int version) {
+        Long weight = weights.remove(component, version);
+        if (weight == null) {
+            return null;
+        }
+
+        completedVersions++;
+        completedWeight += weight;
+        long elapsed = System.nanoTime() - start;
+        long remainingWeight = totalWeight - completedWeight;
+        long remaining;
+        if (estimated) {
+            remaining = remainingWeight;
+        } else {
+            remaining = completedWeight == 0 ? 0 : (long) ((double) elapsed * remainingWeight / completedWeight);
+        }
+
+        double percent = totalWeight == 0 ? 100 : completedWeight * 100.0 / totalWeight;
+        return new MigrationProgress(completedVersions, totalVersions, elapsed, remaining, percent);
+    }
+
+}
@@ -1,18 +1,14 @@
 package ru.finex.evolution.impl;
 
-import com.google.common.collect.ListMultimap;
 import lombok.extern.slf4j.Slf4j;
+import ru.finex.evolution.MigrationConfig;
+import ru.finex.evolution.MigrationEstimate;
+import ru.finex.evolution.MigrationPlan;
 import ru.finex.evolution.MigrationService;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Base64;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -23,107 +19,72 @@ import javax.inject.Singleton;
 @Singleton
 public class MigrationServiceImpl implements MigrationService {
 
-    private final ListMultimap<String, MigrationData> migrations;
-    private final MigrationDao migrationDao;
-    private final MigrationTree migrationTree;
+    private final MigrationEngine engine;
+    private volatile CompletableFuture<Void> deferredMigration = CompletableFuture.completedFuture(null);
 
     @Inject
-    public MigrationServiceImpl(MigrationParser parser, MigrationDao migrationDao, MigrationTree migrationTree) {
-        migrations = handleMigrations(parser);
-        this.migrationDao = migrationDao;
-        this.migrationTree = migrationTree;
-
+    public MigrationServiceImpl(MigrationCatalogue catalogue, MigrationDao migrationDao, MigrationTree migrationTree,
+        MigrationConfig config) {
+        engine = new MigrationEngine(catalogue, migrationDao, migrationTree, config);
         migrationDao.install();
     }
 
-    private ListMultimap<String, MigrationData> handleMigrations(MigrationParser parser) {
-        ListMultimap<String, MigrationData> migrationMultimap = parser.parseAll();
-
-        List<String> components = new ArrayList<>(migrationMultimap.keySet());
-        for (String component : components) {
-            List<MigrationData> migrations = migrationMultimap.get(component);
-            List<MigrationData> joined = migrations.stream()
-                .mapToInt(MigrationData::getVersion)
-                .distinct()
-                .mapToObj(version -> migrations.stream()
-                    .filter(data -> data.getVersion() == version)
-                    .reduce(MigrationData::combine)
-                    .orElse(null)
-                ).filter(Objects::nonNull)
-                .sorted(Comparator.comparingInt(MigrationData::getVersion))
-                .collect(Collectors.toList());
-            migrations.clear();
-            migrations.addAll(joined);
-        }
-
-        return migrationMultimap;
-    }
-
     @Override
     public void autoMigration(boolean autoRollback) {
-        migrationTree.applyOperation(component -> doMigration(component, autoRollback));
+        engine.autoMigration(autoRollback);
     }
 
     @Override
-    public void migrate(String component, boolean autoRollback) {
-        migrationTree.applyOperation(component, e -> doMigration(e, autoRollback));
-    }
-
-    private void doMigration(String component, boolean autoRollback) {
-        MessageDigest digest = createDigest();
-        List<MigrationData> migrations = this.migrations.get(component);
-        List<String> appliedChecksums = migrationDao.getChecksumsByComponent(component);
-
-        boolean isRollback = false;
-        for (int i = 0; i < migrations.size(); i++) {
-            MigrationData data = migrations.get(i);
-            String checksum = calculateChecksum(digest, data);
-
-            if (i < appliedChecksums.size() && !isRollback) {
-                String appliedChecksum = appliedChecksums.get(i);
-
-                if (checksum.equals(appliedChecksum)) {
-                    continue; // already applied
-                }
+    public CompletableFuture<Void> autoMigrationDeferred(boolean autoRollback) {
+        Set<String> postponed = engine.autoMigration(autoRollback, false);
+        if (postponed.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
 
-                log.error("Detect evolution changes: '{}' version {}. Current checksum '{}', new checksum '{}'",
-                    component, data.getVersion(), appliedChecksum, checksum);
+        log.info("Deferred evolutions of {} are applied in background.", postponed);
+        ExecutorService executor = MigrationExecutors.newBoundedExecutor(1, "evolution-deferred");
+        CompletableFuture<Void> future;
+        try {
+            // the whole plan is re-checked: up to date components are skipped by fingerprints
+            future = CompletableFuture.runAsync(() -> engine.autoMigration(autoRollback, true), executor);
+        } finally {
+            executor.shutdown();
+        }
 
-                if (autoRollback) {
-                    log.warn("Rollback evolutions {}+ for '{}'.", data.getVersion(), component);
-                    migrationDao.rollbackAndDeleteRecursive(component, data.getVersion());
-                } else {
-                    throw new RuntimeException(String.format(
-                        "Evolution %s has changes!",
-                        Optional.ofNullable(data.getName())
-                            .orElseGet(() -> getEvolutionFilename(data))
-                    ));
-                }
-                isRollback = true;
+        future.whenComplete((result, e) -> {
+            if (e == null) {
+                log.info("Deferred evolutions of {} are applied.", postponed);
+            } else {
+                log.error("Fail to apply deferred evolutions of {}.", postponed, e);
             }
+        });
+        deferredMigration = future;
+        return future;
+    }
 
-            migrationDao.applyAndSave(data, checksum);
-        }
+    @Override
+    public CompletableFuture<Void> getDeferredMigration() {
+        return deferredMigration;
+    }
 
+    @Override
+    public void migrate(String component, boolean autoRollback) {
+        engine.migrate(component, autoRollback);
     }
 
-    private String getEvolutionFilename(MigrationData data) {
-        return data.getComponent() + "_" + data.getVersion();
+    @Override
+    public MigrationEstimate estimate() {
+        return engine.estimate();
     }
 
-    private String calculateChecksum(MessageDigest digest, MigrationData data) {
-        digest.reset();
-        data.getUpQueries().forEach(query -> digest.update(query.getBytes()));
-        data.getDownQueries().forEach(query -> digest.update(query.getBytes()));
-        return new String(Base64.getEncoder().encode(digest.digest()));
+    @Override
+    public MigrationPlan plan(String component) {
+        return engine.plan(component);
     }
 
-    private static MessageDigest createDigest() {
-        try {
-            return MessageDigest.getInstance("SHA-512");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+    @Override
+    public MigrationPlan planAll() {
+        return engine.planAll();
     }
 
 }
@@ -0,0 +1,137 @@
+package ru.finex.evolution.impl;
+
+import lombok.Data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connection held by migration run with pending history records of the current transaction.
+ * Transaction boundaries are controlled by {@link MigrationDao#commit(MigrationSession)}
+ * and {@link MigrationDao#rollback(MigrationSession)}, not committed changes are rolled back,
+ * advisory locks are released and timeouts left by failed statement are restored on close.
+ * @author m0nster.mind
+ */
+public class MigrationSession implements AutoCloseable {
+
+    private final Connection connection;
+    private final boolean autoCommit;
+    private final List<HistoryRecord> pendingHistory = new ArrayList<>();
+    private boolean locked;
+    private boolean changed;
+    private String defaultLockTimeout;
+    private String defaultStatementTimeout;
+    private boolean timeoutsChanged;
+
+    MigrationSession(Connection connection) throws SQLException {
+        this.connection = connection;
+        autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    List<HistoryRecord> getPendingHistory() {
+        return pendingHistory;
+    }
+
+    void setLocked(boolean locked) {
+        this.locked = locked;
+    }
+
+    /**
+     * Whether transaction holds changes of applied or rolled back versions, their locks are held until commit or rollback.
+     */
+    boolean isChanged() {
+        return changed;
+    }
+
+    void setChanged(boolean changed) {
+        this.changed = changed;
+    }
+
+    /**
+     * Lock timeout of connection before migration, null if it is not read yet.
+     */
+    String getDefaultLockTimeout() {
+        return defaultLockTimeout;
+    }
+
+    /**
+     * Statement timeout of connection before migration, null if it is not read yet.
+     */
+    String getDefaultStatementTimeout() {
+        return defaultStatementTimeout;
+    }
+
+    void setDefaultTimeouts(String lockTimeout, String statementTimeout) {
+        defaultLockTimeout = lockTimeout;
+        defaultStatementTimeout = statementTimeout;
+    }
+
+    /**
+     * Mark session level timeouts set to connection, they are reset on close if they were not restored.
+     * @param timeoutsChanged true if timeouts of connection differ from its defaults
+     */
+    void setTimeoutsChanged(boolean timeoutsChanged) {
+        this.timeoutsChanged = timeoutsChanged;
+    }
+
+    @Override
+    public void close() {
+        try {
+            try {
+                pendingHistory.clear();
+                changed = false;
+                connection.rollback();
+                if (locked) {
+                    // session level advisory locks survive the connection returned into pool
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("select pg_advisory_unlock_all()");
+                    }
+                }
+                if (timeoutsChanged) {
+                    // session level settings of failed non-transactional statement survive the connection returned into pool too
+                    try (PreparedStatement statement = connection.prepareStatement(
+                        "select set_config('lock_timeout', ?, false), set_config('statement_timeout', ?, false)")) {
+                        statement.setString(1, defaultLockTimeout);
+                        statement.setString(2, defaultStatementTimeout);
+                        statement.execute();
+                    }
+                    connection.commit();
+                }
+                connection.setAutoCommit(autoCommit);
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Applied migration which is not written into history yet.
+     */
+    @Data
+    static class HistoryRecord {
+
+        private final String component;
+        private final int version;
+        private final String checksum;
+        private final String upQueries;
+        private final String downQueries;
+        private final long durationMillis;
+        /**
+         * Durations of statements in milliseconds as JSON array, null if statements are not measured.
+         */
+        private final String statementDurations;
+
+    }
+
+}
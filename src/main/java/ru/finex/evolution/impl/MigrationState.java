@@ -0,0 +1,42 @@
+package ru.finex.evolution.impl;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of applied migrations, loaded once per migration run.
+ * @author m0nster.mind
+ */
+public class MigrationState {
+
+    private final ListMultimap<String, AppliedMigration> migrations;
+    private final Map<String, String> fingerprints;
+
+    public MigrationState(ListMultimap<String, AppliedMigration> migrations, Map<String, String> fingerprints) {
+        this.migrations = ImmutableListMultimap.copyOf(migrations);
+        this.fingerprints = ImmutableMap.copyOf(fingerprints);
+    }
+
+    /**
+     * Applied migrations of component.
+     * @param component component
+     * @return applied migrations ordered by version
+     */
+    public List<AppliedMigration> getMigrations(String component) {
+        return migrations.get(component);
+    }
+
+    /**
+     * Stored fingerprint of component migrations.
+     * @param component component
+     * @return fingerprint or null if component is not fully migrated yet
+     */
+    public String getFingerprint(String component) {
+        return fingerprints.get(component);
+    }
+
+}
@@ -0,0 +1,89 @@
+package ru.finex.evolution.impl;
+
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+import ru.finex.evolution.MigrationResult;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Migration of several targets (tenant schemas, shards) which share one parsed migration plan.
+ * Every target is migrated by own {@link MigrationEngine}, failure of a target is isolated:
+ * it is logged and collected into result, other targets are migrated anyway unless fail-fast is requested.
+ * @author m0nster.mind
+ */
+@Slf4j
+@UtilityClass
+public class MigrationTargets {
+
+    /**
+     * Migrate targets concurrently.
+     * @param targets names of targets, duplicates are not allowed
+     * @param engineFactory creates engine of target, its evolution tables are expected to be installed
+     * @param operation migration operation
+     * @param parallelism max count of targets migrated at the same time
+     * @param failFast don't start other targets after a failure, already started targets are completed
+     * @param kind kind of target, used by logs and thread names
+     * @return result of migration
+     */
+    public static MigrationResult migrate(List<String> targets, Function<String, MigrationEngine> engineFactory,
+        Consumer<MigrationEngine> operation, int parallelism, boolean failFast, String kind) {
+        AtomicInteger completed = new AtomicInteger();
+        AtomicBoolean failed = new AtomicBoolean();
+        Outcome skipped = new Outcome(null);
+        List<Outcome> outcomes = MigrationExecutors.map(targets, target -> {
+            if (failFast && failed.get()) {
+                return skipped;
+            }
+
+            try {
+                operation.accept(engineFactory.apply(target));
+                log.info("{} '{}' is migrated ({}/{}).", kind, target, completed.incrementAndGet(), targets.size());
+                return null;
+            } catch (RuntimeException e) {
+                failed.set(true);
+                log.error("Fail to migrate {} '{}' ({}/{}).", kind, target, completed.incrementAndGet(), targets.size(), e);
+                return new Outcome(e);
+            }
+        }, parallelism, "evolution-" + kind);
+
+        List<String> migrated = new ArrayList<>(targets.size());
+        Map<String, RuntimeException> failures = new LinkedHashMap<>();
+        List<String> notStarted = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            Outcome outcome = outcomes.get(i);
+            if (outcome == null) {
+                migrated.add(targets.get(i));
+            } else if (outcome == skipped) {
+                notStarted.add(targets.get(i));
+            } else {
+                failures.put(targets.get(i), outcome.failure);
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            log.warn("{} of {} {} targets are not migrated, failed: {}, skipped: {}", failures.size() + notStarted.size(),
+                targets.size(), kind, failures.keySet(), notStarted);
+        }
+
+        return new MigrationResult(migrated, failures, notStarted);
+    }
+
+    private static final class Outcome {
+
+        private final RuntimeException failure;
+
+        private Outcome(RuntimeException failure) {
+            this.failure = failure;
+        }
+
+    }
+
+}
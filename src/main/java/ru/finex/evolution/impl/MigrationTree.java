@@ -1,165 +1,334 @@
 package ru.finex.evolution.impl;
 
-import lombok.RequiredArgsConstructor;
-import org.apache.commons.lang3.ArrayUtils;
 import ru.finex.evolution.ClasspathScanner;
 import ru.finex.evolution.Evolution;
+import ru.finex.evolution.MigrationConfig;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Objects;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 /**
+ * Dependency graph of components registered by {@link Evolution}.
+ * Components are found by classpath scanning and merged with {@link EvolutionRegistry},
+ * only registry is used if {@link MigrationConfig#isRegistryOnly()} is set.
+ * Topological order and transitive dependencies of every component are computed once at construction,
+ * so each operation visits every component exactly once.
  * @author m0nster.mind
  */
 @Singleton
 @SuppressWarnings("checkstyle:MissingJavadocMethod")
 public class MigrationTree {
 
-    private final Node[] nodes;
-    private final int[] roots;
+    private final String[] components;
+    private final Map<String, Integer> indices;
+    private final int[][] dependencies;
+    private final int[][] dependents;
+    private final int[] order;
+    private final BitSet[] closures;
 
     @Inject
-    public MigrationTree(ClasspathScanner scanner) {
-        List<Evolution> evolutions = scanner.getTypesAnnotatedWith(Evolution.class)
+    public MigrationTree(ClasspathScanner scanner, MigrationConfig config) {
+        this(loadGraph(scanner, config.isRegistryOnly()));
+    }
+
+    MigrationTree(List<Evolution> evolutions) {
+        this(toGraph(evolutions));
+    }
+
+    MigrationTree(Map<String, Set<String>> graph) {
+        components = graph.keySet().toArray(new String[0]);
+        indices = new HashMap<>();
+        for (int i = 0; i < components.length; i++) {
+            indices.put(components[i], i);
+        }
+
+        dependencies = new int[components.length][];
+        for (int i = 0; i < components.length; i++) {
+            dependencies[i] = bindDependencies(components[i], graph.get(components[i]));
+        }
+
+        dependents = bindDependents(dependencies);
+        order = sort(components, dependencies, dependents);
+        closures = buildClosures(order, dependencies);
+    }
+
+    private static Map<String, Set<String>> loadGraph(ClasspathScanner scanner, boolean registryOnly) {
+        ClassLoader classLoader = MigrationTree.class.getClassLoader();
+        if (registryOnly) {
+            EvolutionRegistry.requirePresent(classLoader);
+            return EvolutionRegistry.load(classLoader);
+        }
+
+        List<Evolution> scanned = scanner.getTypesAnnotatedWith(Evolution.class)
             .stream()
             .map(type -> type.getAnnotation(Evolution.class))
             .collect(Collectors.toList());
+        return merge(scanned, EvolutionRegistry.load(classLoader));
+    }
 
-        nodes = evolutions.stream()
-            .map(evolution -> new Node(evolution.value()))
-            .toArray(Node[]::new);
+    static Map<String, Set<String>> merge(List<Evolution> scanned, Map<String, Set<String>> registry) {
+        Map<String, Set<String>> graph = toGraph(scanned);
+        registry.forEach((component, componentDependencies) ->
+            graph.computeIfAbsent(component, e -> new LinkedHashSet<>()).addAll(componentDependencies)
+        );
+        return graph;
+    }
 
-        roots = evolutions.stream()
-            .filter(this::isRoot)
-            .map(Evolution::value)
-            .mapToInt(this::findIndex)
-            .toArray();
+    private static Map<String, Set<String>> toGraph(List<Evolution> evolutions) {
+        Map<String, Set<String>> graph = new LinkedHashMap<>();
+        for (Evolution evolution : evolutions) {
+            Set<String> componentDependencies = graph.computeIfAbsent(evolution.value(), e -> new LinkedHashSet<>());
+            if (evolution.dependencies() != null) {
+                Collections.addAll(componentDependencies, evolution.dependencies());
+            }
+        }
 
-        evolutions.stream()
-            .filter(e -> !isRoot(e))
-            .forEach(this::bindNodeIndices);
+        return graph;
+    }
 
-        IntStream.range(0, nodes.length)
-            .forEach(this::bindNodeReferences);
+    private int[] bindDependencies(String component, Set<String> names) {
+        return names.stream()
+            .filter(name -> !name.equals(component))
+            .mapToInt(name -> {
+                Integer index = indices.get(name);
+                if (index == null) {
+                    throw new IllegalStateException(String.format(
+                        "Component '%s' depends on unknown component '%s'.", component, name
+                    ));
+                }
+                return index;
+            }).toArray();
     }
 
-    private boolean isRoot(Evolution evolution) {
-        String[] dependencies = evolution.dependencies();
-        if (dependencies == null || dependencies.length == 0) {
-            return true;
+    private static int[][] bindDependents(int[][] dependencies) {
+        int[] counts = new int[dependencies.length];
+        for (int[] nodeDependencies : dependencies) {
+            for (int dependency : nodeDependencies) {
+                counts[dependency]++;
+            }
+        }
+
+        int[][] result = new int[dependencies.length][];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+
+        for (int i = 0; i < dependencies.length; i++) {
+            for (int dependency : dependencies[i]) {
+                result[dependency][counts[dependency]++] = i;
+            }
         }
 
-        return dependencies.length == 1 && dependencies[0].equals(evolution.value());
+        return result;
     }
 
-    private Node findNode(String value) {
-        for (Node n : nodes) {
-            if (n.value.equals(value)) {
-                return n;
+    private static int[] sort(String[] components, int[][] dependencies, int[][] dependents) {
+        int[] awaitCounts = new int[components.length];
+        int[] result = new int[components.length];
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < components.length; i++) {
+            awaitCounts[i] = dependencies[i].length;
+            if (awaitCounts[i] == 0) {
+                result[tail++] = i;
+            }
+        }
+
+        while (head < tail) {
+            int index = result[head++];
+            for (int dependent : dependents[index]) {
+                if (--awaitCounts[dependent] == 0) {
+                    result[tail++] = dependent;
+                }
             }
         }
 
-        return null;
+        if (tail != components.length) {
+            List<String> cycle = new ArrayList<>();
+            for (int i = 0; i < components.length; i++) {
+                if (awaitCounts[i] > 0) {
+                    cycle.add(components[i]);
+                }
+            }
+
+            throw new IllegalStateException("Cyclic dependencies between components: " + cycle);
+        }
+
+        return result;
     }
 
-    private int findIndex(String value) {
-        for (int i = 0; i < nodes.length; i++) {
-            if (nodes[i].value.equals(value)) {
-                return i;
+    private static BitSet[] buildClosures(int[] order, int[][] dependencies) {
+        BitSet[] result = new BitSet[order.length];
+        for (int index : order) {
+            BitSet closure = new BitSet(order.length);
+            for (int dependency : dependencies[index]) {
+                closure.set(dependency);
+                closure.or(result[dependency]);
             }
+            result[index] = closure;
         }
 
-        return -1;
+        return result;
     }
 
-    private void bindNodeIndices(Evolution evolution) {
-        Node node = findNode(evolution.value());
-        node.dependencies = Stream.of(evolution.dependencies())
-            .mapToInt(this::findIndex)
-            .toArray();
+    /**
+     * All registered components in topological order: dependencies are placed before dependents.
+     * @return components
+     */
+    public List<String> getComponents() {
+        return Arrays.stream(order)
+            .mapToObj(index -> components[index])
+            .collect(Collectors.toList());
     }
 
-    private void bindNodeReferences(int index) {
-        Node masterNode = nodes[index];
-        for (int i = 0; i < nodes.length; i++) {
-            Node node = nodes[i];
-            if (ArrayUtils.contains(node.dependencies, index)) {
-                masterNode.xref = ArrayUtils.add(masterNode.xref, i);
-            }
+    /**
+     * Transitive dependencies of component in topological order, component itself is not included.
+     * @param component component
+     * @return dependencies or empty list if component is not registered
+     */
+    public List<String> getTransitiveDependencies(String component) {
+        Integer index = indices.get(component);
+        if (index == null) {
+            return Collections.emptyList();
         }
+
+        BitSet closure = closures[index];
+        return Arrays.stream(order)
+            .filter(closure::get)
+            .mapToObj(e -> components[e])
+            .collect(Collectors.toList());
     }
 
     public void applyOperation(Consumer<String> operation) {
-        Queue<Integer> awaitIndices = new LinkedList<>();
-        for (int index : roots) {
-            awaitIndices.add(index);
+        for (int index : order) {
+            operation.accept(components[index]);
         }
+    }
 
-        for (Integer index = awaitIndices.poll(); index != null; index = awaitIndices.poll()) {
-            Node node = nodes[index];
+    /**
+     * Apply operation to all nodes concurrently.
+     * Node is submitted into executor only after operation is completed for all of its dependencies.
+     * If operation fails, no more nodes are submitted, already running operations are awaited
+     * and failure is rethrown.
+     * @param operation operation
+     * @param executor executor to run operation, parallelism is bounded by it
+     */
+    public void applyOperation(Consumer<String> operation, ExecutorService executor) {
+        BitSet selection = new BitSet(components.length);
+        selection.set(0, components.length);
+        schedule(selection, operation, executor);
+    }
 
-            for (int xrefIndex : node.xref) {
-                awaitIndices.add(xrefIndex);
+    public void applyOperation(String nodeName, Consumer<String> operation) {
+        BitSet selection = select(nodeName);
+        for (int index : order) {
+            if (selection.get(index)) {
+                operation.accept(components[index]);
             }
+        }
+    }
 
-            operation.accept(node.value);
+    /**
+     * Apply operation concurrently to the node and all of its transitive dependencies.
+     * @param nodeName node
+     * @param operation operation
+     * @param executor executor to run operation, parallelism is bounded by it
+     * @see #applyOperation(Consumer, ExecutorService)
+     */
+    public void applyOperation(String nodeName, Consumer<String> operation, ExecutorService executor) {
+        schedule(select(nodeName), operation, executor);
+    }
 
+    private BitSet select(String nodeName) {
+        Integer index = indices.get(nodeName);
+        if (index == null) {
+            return new BitSet();
         }
-    }
 
-    public void applyOperation(String nodeName, Consumer<String> operation) {
-        List<Integer> branches = new ArrayList<>();
+        BitSet selection = (BitSet) closures[index].clone();
+        selection.set(index);
+        return selection;
+    }
 
-        int rootIndex = findIndex(nodeName);
-        if (rootIndex == -1) {
-            return;
+    private void schedule(BitSet selection, Consumer<String> operation, ExecutorService executor) {
+        // closure of a selected node is always selected, so dependencies count is not filtered
+        int[] awaitCounts = new int[components.length];
+        CompletionService<Integer> completionService = new ExecutorCompletionService<>(executor);
+        int running = 0;
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            awaitCounts[i] = dependencies[i].length;
+            if (awaitCounts[i] == 0) {
+                submit(completionService, operation, i);
+                running++;
+            }
         }
 
-        Queue<Integer> awaitIndices = new LinkedList<>();
-        awaitIndices.add(rootIndex);
-        for (Integer index = awaitIndices.poll(); index != null; index = awaitIndices.poll()) {
-            branches.add(index);
+        RuntimeException failure = null;
+        for (; running > 0; running--) {
+            int index;
+            try {
+                index = takeCompleted(completionService);
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+                continue;
+            }
+
+            if (failure != null) {
+                continue;
+            }
 
-            Node node = nodes[index];
-            for (int dependency : node.dependencies) {
-                awaitIndices.add(dependency);
+            for (int dependent : dependents[index]) {
+                if (selection.get(dependent) && --awaitCounts[dependent] == 0) {
+                    submit(completionService, operation, dependent);
+                    running++;
+                }
             }
         }
 
-        Collections.reverse(branches);
-        branches.stream()
-            .map(index -> nodes[index].value)
-            .forEachOrdered(operation);
+        if (failure != null) {
+            throw failure;
+        }
     }
 
-    @RequiredArgsConstructor
-    private static class Node {
-        private final String value;
-        private int[] dependencies = new int[0];
-        private int[] xref = new int[0];
+    private void submit(CompletionService<Integer> completionService, Consumer<String> operation, int index) {
+        String value = components[index];
+        completionService.submit(() -> {
+            operation.accept(value);
+            return index;
+        });
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            Node node = (Node) o;
-            return value.equals(node.value);
+    private static int takeCompleted(CompletionService<Integer> completionService) {
+        Future<Integer> future;
+        try {
+            future = completionService.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(value);
-        }
+        return MigrationExecutors.await(future);
     }
 
 }
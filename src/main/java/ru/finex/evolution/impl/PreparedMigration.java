@@ -0,0 +1,24 @@
+package ru.finex.evolution.impl;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Migration ready to be applied: statements are decoded and history record is serialized.
+ * @author m0nster.mind
+ * @see MigrationDao#prepare(MigrationData, String)
+ */
+@Data
+public class PreparedMigration {
+
+    private final MigrationData data;
+    private final String checksum;
+    /**
+     * Up queries, null if migration is streamed.
+     */
+    private final List<String> upQueries;
+    private final String upHistory;
+    private final String downHistory;
+
+}
@@ -0,0 +1,144 @@
+package ru.finex.evolution.impl;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Data source which connections use the schema: search path is set when connection is taken
+ * and restored when connection is closed, so connections of a pool can be shared.
+ * Schema must exist, otherwise objects would be created in the next schema of search path.
+ * @author m0nster.mind
+ */
+public class SchemaDataSource implements DataSource {
+
+    private final DataSource dataSource;
+    private final String schema;
+    private final String searchPath;
+
+    /**
+     * Create data source of schema.
+     * @param dataSource data source
+     * @param schema schema, the first one of search path
+     * @param suffix schemas appended to search path after the schema, empty if the schema is used only
+     */
+    public SchemaDataSource(DataSource dataSource, String schema, String suffix) {
+        this.dataSource = dataSource;
+        this.schema = schema;
+        String path = "\"" + schema.replace("\"", "\"\"") + "\"";
+        this.searchPath = suffix == null || suffix.trim().isEmpty() ? path : path + ", " + suffix.trim();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return wrap(dataSource.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return wrap(dataSource.getConnection(username, password));
+    }
+
+    private Connection wrap(Connection connection) throws SQLException {
+        String originalPath;
+        try {
+            originalPath = setSearchPath(connection, schema, searchPath);
+            if (originalPath == null) {
+                throw new IllegalStateException("Schema '" + schema + "' doesn't exist.");
+            }
+        } catch (SQLException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+            (proxy, method, args) -> {
+                if ("close".equals(method.getName()) && method.getParameterCount() == 0) {
+                    try {
+                        if (!connection.isClosed()) {
+                            setSearchPath(connection, null, originalPath);
+                        }
+                    } finally {
+                        connection.close();
+                    }
+                    return null;
+                }
+
+                try {
+                    return method.invoke(connection, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+    }
+
+    /**
+     * Set search path of connection out of transaction.
+     * @param schema schema which must exist to set search path, null if it is not checked
+     * @return previous search path, null if schema doesn't exist and search path is not changed
+     */
+    private static String setSearchPath(Connection connection, String schema, String path) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+            "select current_setting('search_path'), set_config('search_path', ?, false)\n" +
+                    "where ?::text is null or exists(select 1 from pg_namespace where nspname = ?)")) {
+            statement.setString(1, path);
+            statement.setString(2, schema);
+            statement.setString(3, schema);
+            String previous = null;
+            try (ResultSet results = statement.executeQuery()) {
+                if (results.next()) {
+                    previous = results.getString(1);
+                }
+            }
+
+            // setting is transactional, without commit it is lost by rollback
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+            return previous;
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return dataSource.isWrapperFor(iface);
+    }
+
+}
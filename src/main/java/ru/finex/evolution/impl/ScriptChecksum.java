@@ -0,0 +1,192 @@
+package ru.finex.evolution.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Checksum of evolution scripts calculated by lines the way line based parser of earlier versions did,
+ * so checksums of applied evolutions are not changed by {@link SqlLexer}.
+ * <p>
+ * Every non-blank line which doesn't start with {@code #} is digested without line break: if line contains {@code ;;}
+ * they are replaced by {@code ;}, otherwise the first {@code ;} of line is cut, even if it is a part of comment or literal.
+ * Lines of up sections of all scripts of a version are digested before lines of their down sections.
+ * Script is checksummed while it is read, statements are split by lexer independently.
+ * Lines are digested in UTF-8, parser of earlier versions digested them in platform default charset,
+ * see {@link MigrationParser#calculateLegacyChecksum(MigrationData)}.
+ * @author m0nster.mind
+ */
+public class ScriptChecksum {
+
+    private final MessageDigest digest;
+    private final Charset charset;
+    private final ByteArrayOutputStream down = new ByteArrayOutputStream();
+    private final StringBuilder line = new StringBuilder();
+    private SqlLexer.Section section = SqlLexer.Section.UP;
+
+    /**
+     * Create checksum of version scripts.
+     * @param digest digest, it is reset
+     */
+    public ScriptChecksum(MessageDigest digest) {
+        this(digest, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Create checksum of version scripts.
+     * @param digest digest, it is reset
+     * @param charset charset of digested lines
+     */
+    public ScriptChecksum(MessageDigest digest, Charset charset) {
+        this.digest = digest;
+        this.charset = charset;
+        digest.reset();
+    }
+
+    /**
+     * Read the next script of version to the end and checksum it.
+     * @param reader script
+     * @throws IOException read error
+     */
+    public void update(Reader reader) throws IOException {
+        Reader wrapped = wrap(reader);
+        char[] buffer = new char[8192];
+        while (wrapped.read(buffer) >= 0) {
+            // checksummed by wrapper
+        }
+    }
+
+    /**
+     * Wrap reader of the next script of version, characters read from the wrapper are checksummed.
+     * @param reader script
+     * @return wrapper
+     */
+    public Reader wrap(Reader reader) {
+        endLine();
+        section = SqlLexer.Section.UP;
+        return new FilterReader(reader) {
+            @Override
+            public int read() throws IOException {
+                int c = super.read();
+                if (c == '\n' || c == '\r') {
+                    endLine();
+                } else if (c >= 0) {
+                    line.append((char) c);
+                }
+                return c;
+            }
+
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    accept(buffer, offset, read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long count) throws IOException {
+                char[] buffer = new char[(int) Math.min(count, 8192)];
+                long skipped = 0;
+                while (skipped < count) {
+                    int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+                    if (read < 0) {
+                        break;
+                    }
+                    skipped += read;
+                }
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            @Override
+            public void mark(int limit) throws IOException {
+                throw new IOException("Mark is not supported");
+            }
+
+            @Override
+            public void reset() throws IOException {
+                throw new IOException("Reset is not supported");
+            }
+        };
+    }
+
+    /**
+     * Complete checksum, scripts should be read to the end.
+     * @return base64 encoded checksum
+     */
+    public String complete() {
+        endLine();
+        digest.update(down.toByteArray());
+        return MigrationChecksums.complete(digest);
+    }
+
+    private void accept(char[] buffer, int offset, int length) {
+        int lineStart = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            char c = buffer[i];
+            if (c == '\n' || c == '\r') {
+                line.append(buffer, lineStart, i - lineStart);
+                endLine();
+                lineStart = i + 1;
+            }
+        }
+        line.append(buffer, lineStart, end - lineStart);
+    }
+
+    private void endLine() {
+        if (line.length() == 0) {
+            return;
+        }
+
+        String text = line.toString();
+        line.setLength(0);
+        if (text.charAt(0) == '#') {
+            SqlLexer.Section marker = SqlLexer.parseSection(text);
+            if (marker != null) {
+                section = marker;
+            }
+            return;
+        }
+
+        if (isBlank(text)) {
+            return;
+        }
+
+        if (text.contains(";;")) {
+            text = text.replace(";;", ";");
+        } else {
+            int index = text.indexOf(';');
+            if (index >= 0) {
+                text = text.substring(0, index) + text.substring(index + 1);
+            }
+        }
+
+        byte[] bytes = text.getBytes(charset);
+        if (section == SqlLexer.Section.UP) {
+            digest.update(bytes);
+        } else {
+            down.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static boolean isBlank(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
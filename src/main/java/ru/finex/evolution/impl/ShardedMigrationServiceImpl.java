@@ -0,0 +1,55 @@
+package ru.finex.evolution.impl;
+
+import ru.finex.evolution.MigrationConfig;
+import ru.finex.evolution.MigrationResult;
+import ru.finex.evolution.ShardedMigrationService;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.function.Consumer;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.sql.DataSource;
+
+/**
+ * Migration of shards: evolutions are parsed and checksummed once by {@link MigrationCatalogue},
+ * every shard has own history tables and is migrated by own {@link MigrationEngine}.
+ * Failure of a shard is isolated, see {@link MigrationTargets}.
+ * @author m0nster.mind
+ */
+@Singleton
+public class ShardedMigrationServiceImpl implements ShardedMigrationService {
+
+    private final MigrationCatalogue catalogue;
+    private final MigrationTree migrationTree;
+    private final MigrationConfig config;
+
+    @Inject
+    public ShardedMigrationServiceImpl(MigrationCatalogue catalogue, MigrationTree migrationTree, MigrationConfig config) {
+        this.catalogue = catalogue;
+        this.migrationTree = migrationTree;
+        this.config = config;
+    }
+
+    @Override
+    public MigrationResult autoMigration(Map<String, DataSource> shards, boolean autoRollback) {
+        return migrateShards(shards, engine -> engine.autoMigration(autoRollback));
+    }
+
+    @Override
+    public MigrationResult migrate(Map<String, DataSource> shards, String component, boolean autoRollback) {
+        return migrateShards(shards, engine -> engine.migrate(component, autoRollback));
+    }
+
+    private MigrationResult migrateShards(Map<String, DataSource> shards, Consumer<MigrationEngine> operation) {
+        return MigrationTargets.migrate(new ArrayList<>(shards.keySet()), shard -> createEngine(shards.get(shard)), operation,
+            config.getShardParallelism(), config.isFailFast(), "shard");
+    }
+
+    private MigrationEngine createEngine(DataSource dataSource) {
+        MigrationDao migrationDao = new MigrationDao(dataSource, config);
+        migrationDao.install();
+        return new MigrationEngine(catalogue, migrationDao, migrationTree, config);
+    }
+
+}
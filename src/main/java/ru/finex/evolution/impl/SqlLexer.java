@@ -0,0 +1,470 @@
+package ru.finex.evolution.impl;
+
+import lombok.Data;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * Single pass lexer of evolution scripts, splits script into statements.
+ * <p>
+ * Statement terminator {@code ;} is recognized outside of string literals, quoted identifiers,
+ * dollar-quoted bodies and comments. {@code ;;} is an escaped {@code ;} and never ends a statement.
+ * Lines started with {@code #} are directives: {@code # --- !Ups} and {@code # --- !Downs} switch
+ * current section, {@code # --- !Deferred} marks script as deferred. Options of {@code # --- !Ups} directive:
+ * {@code nontransactional} marks up statements as non-transactional, {@code lock_timeout=5s} and {@code statement_timeout=10min}
+ * set timeouts of up statements. Other directive lines are skipped.
+ * <p>
+ * Statement is accumulated in the read buffer itself, skipped characters are compacted in place,
+ * so the only allocation per statement is the statement string.
+ * @author m0nster.mind
+ */
+@SuppressWarnings("checkstyle:ReturnCount")
+public class SqlLexer {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int STATE_NORMAL = 0;
+    private static final int STATE_STRING = 1;
+    private static final int STATE_ESCAPE_STRING = 2;
+    private static final int STATE_IDENTIFIER = 3;
+    private static final int STATE_DOLLAR = 4;
+    private static final int STATE_LINE_COMMENT = 5;
+    private static final int STATE_BLOCK_COMMENT = 6;
+
+    private final Reader reader;
+    private char[] buffer;
+    private int start;
+    private int out;
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    private Section section = Section.UP;
+    private int state = STATE_NORMAL;
+    private boolean lineStart = true;
+    private char prev;
+    private char prevPrev;
+    private String dollarTag;
+    private int commentDepth;
+    private boolean deferred;
+    private boolean nontransactional;
+    private String lockTimeout;
+    private String statementTimeout;
+
+    public SqlLexer(Reader reader) {
+        this(reader, BUFFER_SIZE);
+    }
+
+    public SqlLexer(CharSequence content) {
+        this(new StringReader(content.toString()), Math.max(16, Math.min(content.length() + 1, BUFFER_SIZE)));
+    }
+
+    private SqlLexer(Reader reader, int bufferSize) {
+        this.reader = reader;
+        this.buffer = new char[bufferSize];
+    }
+
+    /**
+     * Read next statement.
+     * @return statement or null if script is ended
+     * @throws IOException read error
+     */
+    public Statement next() throws IOException {
+        while (true) {
+            if (!ensure(1)) {
+                return takeStatement();
+            }
+
+            char c = buffer[pos];
+            if (c == ';' && ensure(2) && buffer[pos + 1] == ';') {
+                // escaped semicolon
+                copy();
+                pos++;
+                lineStart = false;
+                continue;
+            }
+
+            switch (state) {
+                case STATE_NORMAL:
+                    if (lineStart && c == '#') {
+                        Statement statement = directive();
+                        if (statement != null) {
+                            return statement;
+                        }
+                        continue;
+                    }
+
+                    if (c == ';') {
+                        pos++;
+                        lineStart = false;
+                        copyTrailingSpaces();
+                        Statement statement = takeStatement();
+                        if (statement != null) {
+                            return statement;
+                        }
+                        continue;
+                    }
+
+                    normal(c);
+                    break;
+                case STATE_STRING:
+                case STATE_IDENTIFIER:
+                    if (c == (state == STATE_STRING ? '\'' : '"')) {
+                        state = STATE_NORMAL;
+                        prevPrev = 0;
+                        prev = c;
+                    }
+                    copy();
+                    break;
+                case STATE_ESCAPE_STRING:
+                    if (c == '\\' && ensure(2)) {
+                        copy();
+                    } else if (c == '\'') {
+                        state = STATE_NORMAL;
+                        prevPrev = 0;
+                        prev = c;
+                    }
+                    copy();
+                    break;
+                case STATE_DOLLAR:
+                    if (c == '$' && matchTag(dollarTag)) {
+                        for (int i = 0; i < dollarTag.length(); i++) {
+                            copy();
+                        }
+                        state = STATE_NORMAL;
+                        lineStart = false;
+                        prevPrev = 0;
+                        prev = '$';
+                        continue;
+                    }
+                    copy();
+                    break;
+                case STATE_LINE_COMMENT:
+                    if (c == '\n' || c == '\r') {
+                        state = STATE_NORMAL;
+                    }
+                    copy();
+                    break;
+                case STATE_BLOCK_COMMENT:
+                    blockComment(c);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown lexer state: " + state);
+            }
+
+            lineStart = c == '\n' || c == '\r';
+        }
+    }
+
+    private void normal(char c) throws IOException {
+        if (c == '\'') {
+            state = isIdentifierPart(prevPrev) || (prev != 'E' && prev != 'e') ? STATE_STRING : STATE_ESCAPE_STRING;
+        } else if (c == '"') {
+            state = STATE_IDENTIFIER;
+        } else if (c == '-' && ensure(2) && buffer[pos + 1] == '-') {
+            state = STATE_LINE_COMMENT;
+        } else if (c == '/' && ensure(2) && buffer[pos + 1] == '*') {
+            state = STATE_BLOCK_COMMENT;
+            commentDepth = 1;
+            copy();
+        } else if (c == '$' && !isIdentifierPart(prev)) {
+            String tag = readTag();
+            if (tag != null) {
+                dollarTag = tag;
+                state = STATE_DOLLAR;
+                for (int i = 1; i < tag.length(); i++) {
+                    copy();
+                }
+            }
+        }
+
+        prevPrev = prev;
+        prev = c;
+        copy();
+    }
+
+    private void blockComment(char c) throws IOException {
+        if (c == '*' && ensure(2) && buffer[pos + 1] == '/') {
+            copy();
+            if (--commentDepth == 0) {
+                state = STATE_NORMAL;
+            }
+        } else if (c == '/' && ensure(2) && buffer[pos + 1] == '*') {
+            copy();
+            commentDepth++;
+        }
+        copy();
+    }
+
+    /**
+     * Read dollar quote tag at current position.
+     * @return tag including both dollar signs or null if it is not a tag
+     */
+    private String readTag() throws IOException {
+        int length = 1;
+        while (true) {
+            if (!ensure(length + 1)) {
+                return null;
+            }
+
+            char c = buffer[pos + length];
+            if (c == '$') {
+                return new String(buffer, pos, length + 1);
+            }
+
+            boolean valid = length == 1 ? Character.isLetter(c) || c == '_' : isIdentifierPart(c);
+            if (!valid) {
+                return null;
+            }
+            length++;
+        }
+    }
+
+    private boolean matchTag(String tag) throws IOException {
+        if (!ensure(tag.length())) {
+            return false;
+        }
+
+        for (int i = 0; i < tag.length(); i++) {
+            if (buffer[pos + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private Statement directive() throws IOException {
+        int length = 0;
+        while (ensure(length + 1) && !isLineBreak(buffer[pos + length])) {
+            length++;
+        }
+
+        String line = new String(buffer, pos, length);
+        pos += length;
+        while (ensure(1) && isLineBreak(buffer[pos])) {
+            pos++;
+        }
+
+        String directive = parseDirective(line);
+        if (directive == null) {
+            return null;
+        }
+
+        if (directive.startsWith("!Deferred")) {
+            deferred = true;
+            return null;
+        }
+
+        Section marker = parseMarker(directive);
+        if (marker == null) {
+            return null;
+        }
+
+        if (marker == Section.UP) {
+            parseUpOptions(directive.substring("!Ups".length()).trim());
+        }
+
+        Statement statement = takeStatement();
+        section = marker;
+        return statement;
+    }
+
+    /**
+     * Parse directive line.
+     * @return directive without {@code # ---} prefix or null if line is not a directive
+     */
+    private static String parseDirective(String line) {
+        int index = skipSpaces(line, 1);
+        if (!line.startsWith("---", index)) {
+            return null;
+        }
+
+        return line.substring(skipSpaces(line, index + 3));
+    }
+
+    /**
+     * Parse section marker of directive line.
+     * @param line line started with {@code #}
+     * @return section switched by line or null if line is not a section marker
+     */
+    static Section parseSection(String line) {
+        String directive = parseDirective(line);
+        return directive == null ? null : parseMarker(directive);
+    }
+
+    private static Section parseMarker(String directive) {
+        if (directive.startsWith("!Ups")) {
+            return Section.UP;
+        } else if (directive.startsWith("!Downs")) {
+            return Section.DOWN;
+        }
+
+        return null;
+    }
+
+    private void parseUpOptions(String options) {
+        for (String option : options.split("\\s+")) {
+            if (option.equals("nontransactional")) {
+                nontransactional = true;
+            } else if (option.startsWith("lock_timeout=")) {
+                lockTimeout = option.substring("lock_timeout=".length());
+            } else if (option.startsWith("statement_timeout=")) {
+                statementTimeout = option.substring("statement_timeout=".length());
+            }
+        }
+    }
+
+    private static int skipSpaces(String line, int index) {
+        int result = index;
+        while (result < line.length() && Character.isWhitespace(line.charAt(result))) {
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Script is marked by {@code # --- !Deferred} directive, known only after the directive is read.
+     * @return true if script is deferred
+     */
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Up section is marked by {@code # --- !Ups nontransactional} directive.
+     * @return true if up statements could not be executed in transaction
+     */
+    public boolean isNontransactional() {
+        return nontransactional;
+    }
+
+    /**
+     * Lock timeout of up statements set by {@code lock_timeout} option of {@code # --- !Ups} directive.
+     * @return timeout in PostgreSQL format or null if it is not set
+     */
+    public String getLockTimeout() {
+        return lockTimeout;
+    }
+
+    /**
+     * Statement timeout of up statements set by {@code statement_timeout} option of {@code # --- !Ups} directive.
+     * @return timeout in PostgreSQL format or null if it is not set
+     */
+    public String getStatementTimeout() {
+        return statementTimeout;
+    }
+
+    private void copyTrailingSpaces() throws IOException {
+        while (ensure(1) && (buffer[pos] == ' ' || buffer[pos] == '\t')) {
+            copy();
+        }
+    }
+
+    private void copy() {
+        buffer[out++] = buffer[pos++];
+    }
+
+    /**
+     * Take accumulated statement, leading blank lines and trailing line breaks are cut.
+     * @return statement or null if it is blank
+     */
+    private Statement takeStatement() {
+        int from = start;
+        int to = out;
+        start = out;
+        prev = 0;
+        prevPrev = 0;
+
+        int firstContent = from;
+        while (firstContent < to && Character.isWhitespace(buffer[firstContent])) {
+            firstContent++;
+        }
+
+        if (firstContent == to) {
+            return null;
+        }
+
+        for (int i = firstContent - 1; i >= from; i--) {
+            if (isLineBreak(buffer[i])) {
+                from = i + 1;
+                break;
+            }
+        }
+
+        int lastContent = to - 1;
+        while (Character.isWhitespace(buffer[lastContent])) {
+            lastContent--;
+        }
+
+        for (int i = lastContent + 1; i < to; i++) {
+            if (isLineBreak(buffer[i])) {
+                to = i;
+                break;
+            }
+        }
+
+        return new Statement(section, new String(buffer, from, to - from));
+    }
+
+    private boolean ensure(int count) throws IOException {
+        while (limit - pos < count) {
+            if (eof) {
+                return false;
+            }
+
+            int kept = out - start;
+            int pending = limit - pos;
+            System.arraycopy(buffer, start, buffer, 0, kept);
+            System.arraycopy(buffer, pos, buffer, kept, pending);
+            start = 0;
+            out = kept;
+            pos = kept;
+            limit = kept + pending;
+
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isLineBreak(char c) {
+        return c == '\n' || c == '\r';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    /**
+     * Script section.
+     */
+    public enum Section {
+        UP,
+        DOWN
+    }
+
+    /**
+     * Statement of script.
+     */
+    @Data
+    public static class Statement {
+
+        private final Section section;
+        private final String text;
+
+    }
+
+}
@@ -0,0 +1,153 @@
+package ru.finex.evolution.impl;
+
+import lombok.Data;
+import lombok.experimental.UtilityClass;
+import ru.finex.evolution.MigrationPlan;
+import ru.finex.evolution.MigrationPlan.Kind;
+import ru.finex.evolution.MigrationPlan.Lock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Classification of table lock taken by statement, statement is recognized by its leading syntax without parsing.
+ * Lock of a statement which affects several tables is classified by its main table.
+ * Only a strict list of statements is classified as {@link Kind#CATALOG}: they change system catalog without scan or rewrite of table data.
+ * @author m0nster.mind
+ * @see <a href="https://www.postgresql.org/docs/current/explicit-locking.html">Explicit locking</a>
+ */
+@UtilityClass
+public class SqlLocks {
+
+    private static final String IDENTIFIER = "(?:\"[^\"]+\"|[\\w$]+)(?:\\.(?:\"[^\"]+\"|[\\w$]+))?";
+    private static final String NAME = "(?<table>" + IDENTIFIER + ")";
+    private static final String CREATE_TABLE = "create\\s+(?:(?:global|local)\\s+)?(?:(?:temp|temporary|unlogged)\\s+)?table\\s+"
+        + "(?:if\\s+not\\s+exists\\s+)?" + IDENTIFIER + "\\s*";
+    private static final String ALTER_TABLE = "alter\\s+table\\s+(?:if\\s+exists\\s+)?(?:only\\s+)?" + NAME + "\\s+";
+    private static final Pattern LEADING_COMMENTS = Pattern.compile("^(?:\\s+|--[^\\n]*(?:\\n|$)|/\\*.*?\\*/)*", Pattern.DOTALL);
+    private static final Pattern LOCK_TABLE = Pattern.compile("lock\\s+(?:table\\s+)?(?:only\\s+)?" + NAME + "(?:.*?\\bin\\s+(?<mode>.+?)\\s+mode\\b)?",
+        Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern NAME_PART = Pattern.compile("\"([^\"]+)\"|([^.\"]+)");
+    private static final List<Rule> RULES = createRules();
+
+    /**
+     * Classify statement.
+     * @param sql statement
+     * @return statement without explain result, not recognized statement is {@link Kind#UNKNOWN}
+     */
+    public static MigrationPlan.Statement classify(String sql) {
+        String statement = stripLeadingComments(sql);
+        Matcher lockTable = LOCK_TABLE.matcher(statement);
+        if (lockTable.lookingAt()) {
+            return new MigrationPlan.Statement(sql, lockMode(lockTable.group("mode")), lockTable.group("table"), Kind.DDL);
+        }
+
+        for (Rule rule : RULES) {
+            Matcher matcher = rule.getPattern().matcher(statement);
+            if (matcher.lookingAt()) {
+                return new MigrationPlan.Statement(sql, rule.getLock(), rule.isTable() ? matcher.group("table") : null, rule.getKind());
+            }
+        }
+
+        return new MigrationPlan.Statement(sql, null, null, Kind.UNKNOWN);
+    }
+
+    /**
+     * Cut comments and spaces before statement.
+     * @param sql statement
+     * @return statement started by its first keyword
+     */
+    static String stripLeadingComments(String sql) {
+        Matcher comments = LEADING_COMMENTS.matcher(sql);
+        return comments.lookingAt() ? sql.substring(comments.end()) : sql;
+    }
+
+    /**
+     * Split qualified name into unquoted schema and name: quoted identifiers keep their case, other identifiers are lower cased.
+     * @param name qualified name
+     * @return schema (empty if name is not qualified) and name
+     */
+    static String[] unquote(String name) {
+        List<String> parts = new ArrayList<>(2);
+        Matcher matcher = NAME_PART.matcher(name);
+        while (matcher.find()) {
+            parts.add(matcher.group(1) != null ? matcher.group(1) : matcher.group(2).toLowerCase(Locale.ROOT));
+        }
+        return parts.size() == 1 ? new String[] {"", parts.get(0)} : new String[] {parts.get(0), parts.get(1)};
+    }
+
+    private static Lock lockMode(String mode) {
+        if (mode == null) {
+            return Lock.ACCESS_EXCLUSIVE; // default mode of lock statement
+        }
+
+        try {
+            return Lock.valueOf(mode.trim().replaceAll("\\s+", "_").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return Lock.ACCESS_EXCLUSIVE;
+        }
+    }
+
+    private static List<Rule> createRules() {
+        List<Rule> rules = new ArrayList<>();
+        rule(rules, "create\\s+(?:unique\\s+)?index\\s+concurrently\\b.*?\\bon\\s+(?:only\\s+)?" + NAME, Lock.SHARE_UPDATE_EXCLUSIVE, Kind.DDL);
+        rule(rules, "create\\s+(?:unique\\s+)?index\\b.*?\\bon\\s+(?:only\\s+)?" + NAME, Lock.SHARE, Kind.DDL);
+        rule(rules, "drop\\s+index\\s+concurrently\\b", Lock.SHARE_UPDATE_EXCLUSIVE, Kind.DDL);
+        rule(rules, "drop\\s+index\\b", Lock.ACCESS_EXCLUSIVE, Kind.DDL);
+        rule(rules, "reindex\\s+(?:\\(.*?\\)\\s*)?(?:index|table)\\s+concurrently\\s+" + NAME, Lock.SHARE_UPDATE_EXCLUSIVE, Kind.DDL);
+        rule(rules, "reindex\\s+(?:\\(.*?\\)\\s*)?(?:index|table)\\s+" + NAME, Lock.SHARE, Kind.DDL);
+        // column without default and constraints is added to catalog only, table is not scanned
+        rule(rules, ALTER_TABLE + "add\\s+(?!constraint\\b)(?:column\\s+)?(?:if\\s+not\\s+exists\\s+)?"
+            + "(?!.*(?:,|\\b(?:default|not\\s+null|generated|identity|primary|unique|references|check|exclude|\\w*serial\\d?)\\b))",
+            Lock.ACCESS_EXCLUSIVE, Kind.CATALOG);
+        rule(rules, ALTER_TABLE + "(?:validate\\s+constraint|set\\s+statistics|alter\\s+(?:column\\s+)?\\S+\\s+set\\s+statistics"
+            + "|set\\s*\\(|reset\\s*\\(|cluster\\s+on|set\\s+without\\s+cluster|attach\\s+partition"
+            + "|detach\\s+partition\\s+\\S+\\s+concurrently)\\b", Lock.SHARE_UPDATE_EXCLUSIVE, Kind.DDL);
+        rule(rules, ALTER_TABLE + "(?:add\\s+(?:constraint\\s+\\S+\\s+)?foreign\\s+key|(?:enable|disable)\\s+trigger)\\b",
+            Lock.SHARE_ROW_EXCLUSIVE, Kind.DDL);
+        rule(rules, ALTER_TABLE, Lock.ACCESS_EXCLUSIVE, Kind.DDL);
+        // table created by query is filled by it, partition locks its parent
+        rule(rules, CREATE_TABLE + "partition\\s+of\\s+" + NAME, Lock.ACCESS_EXCLUSIVE, Kind.DDL);
+        rule(rules, CREATE_TABLE + "\\((?!.*\\)\\s*as\\s)", null, Kind.CATALOG);
+        rule(rules, CREATE_TABLE, null, Kind.DDL);
+        rule(rules, "create\\s+(?:type|schema|sequence)\\b", null, Kind.CATALOG);
+        rule(rules, "drop\\s+table\\s+(?:if\\s+exists\\s+)?" + NAME, Lock.ACCESS_EXCLUSIVE, Kind.DDL);
+        rule(rules, "truncate\\s+(?:table\\s+)?(?:only\\s+)?" + NAME, Lock.ACCESS_EXCLUSIVE, Kind.DDL);
+        rule(rules, "(?:vacuum\\s+full|vacuum\\s*\\([^)]*\\bfull\\b|cluster)\\b", Lock.ACCESS_EXCLUSIVE, Kind.DDL);
+        rule(rules, "(?:vacuum|analyze)\\b", Lock.SHARE_UPDATE_EXCLUSIVE, Kind.DDL);
+        rule(rules, "refresh\\s+materialized\\s+view\\s+concurrently\\s+" + NAME, Lock.EXCLUSIVE, Kind.DDL);
+        rule(rules, "refresh\\s+materialized\\s+view\\s+" + NAME, Lock.ACCESS_EXCLUSIVE, Kind.DDL);
+        rule(rules, "create\\s+(?:or\\s+replace\\s+)?(?:constraint\\s+)?trigger\\b.*?\\bon\\s+" + NAME, Lock.SHARE_ROW_EXCLUSIVE, Kind.DDL);
+        rule(rules, "comment\\s+on\\s+table\\s+" + NAME, Lock.SHARE_UPDATE_EXCLUSIVE, Kind.DDL);
+        rule(rules, "insert\\s+into\\s+" + NAME, Lock.ROW_EXCLUSIVE, Kind.DML);
+        rule(rules, "update\\s+(?:only\\s+)?" + NAME, Lock.ROW_EXCLUSIVE, Kind.DML);
+        rule(rules, "delete\\s+from\\s+(?:only\\s+)?" + NAME, Lock.ROW_EXCLUSIVE, Kind.DML);
+        rule(rules, "merge\\s+into\\s+" + NAME, Lock.ROW_EXCLUSIVE, Kind.DML);
+        // tables of common table expression and select are not recognized
+        rule(rules, "with\\b", null, Kind.DML);
+        rule(rules, "select\\b", Lock.ACCESS_SHARE, Kind.DML);
+        return Collections.unmodifiableList(rules);
+    }
+
+    private static void rule(List<Rule> rules, String regex, Lock lock, Kind kind) {
+        rules.add(new Rule(Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.DOTALL), regex.contains(NAME), lock, kind));
+    }
+
+    @Data
+    private static class Rule {
+
+        private final Pattern pattern;
+        /**
+         * Pattern captures name of table.
+         */
+        private final boolean table;
+        private final Lock lock;
+        private final Kind kind;
+
+    }
+
+}
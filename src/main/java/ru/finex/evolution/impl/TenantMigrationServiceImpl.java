@@ -0,0 +1,61 @@
+package ru.finex.evolution.impl;
+
+import ru.finex.evolution.MigrationConfig;
+import ru.finex.evolution.MigrationResult;
+import ru.finex.evolution.TenantMigrationService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.sql.DataSource;
+
+/**
+ * Migration of tenant schemas: evolutions are parsed and checksummed once by {@link MigrationCatalogue},
+ * every schema has own history tables and is migrated by own {@link MigrationEngine}.
+ * Failure of a schema is isolated, see {@link MigrationTargets}.
+ * @author m0nster.mind
+ */
+@Singleton
+public class TenantMigrationServiceImpl implements TenantMigrationService {
+
+    private final MigrationCatalogue catalogue;
+    private final MigrationTree migrationTree;
+    private final MigrationConfig config;
+    private final DataSource dataSource;
+
+    @Inject
+    public TenantMigrationServiceImpl(MigrationCatalogue catalogue, MigrationTree migrationTree, MigrationConfig config,
+        @Named("Migration") DataSource dataSource) {
+        this.catalogue = catalogue;
+        this.migrationTree = migrationTree;
+        this.config = config;
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public MigrationResult autoMigration(Collection<String> schemas, boolean autoRollback) {
+        return migrateTenants(schemas, engine -> engine.autoMigration(autoRollback));
+    }
+
+    @Override
+    public MigrationResult migrate(Collection<String> schemas, String component, boolean autoRollback) {
+        return migrateTenants(schemas, engine -> engine.migrate(component, autoRollback));
+    }
+
+    private MigrationResult migrateTenants(Collection<String> schemas, Consumer<MigrationEngine> operation) {
+        List<String> tenants = new ArrayList<>(new LinkedHashSet<>(schemas));
+        return MigrationTargets.migrate(tenants, this::createEngine, operation, config.getTenantParallelism(), config.isFailFast(), "tenant");
+    }
+
+    private MigrationEngine createEngine(String schema) {
+        MigrationDao migrationDao = new MigrationDao(new SchemaDataSource(dataSource, schema, config.getTenantSearchPath()), config, schema);
+        migrationDao.install();
+        return new MigrationEngine(catalogue, migrationDao, migrationTree, config);
+    }
+
+}
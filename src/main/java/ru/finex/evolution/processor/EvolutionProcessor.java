@@ -0,0 +1,92 @@
+package ru.finex.evolution.processor;
+
+import ru.finex.evolution.ChunkedEvolution;
+import ru.finex.evolution.Evolution;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Collects all {@link Evolution} components at compile time into {@link #REGISTRY_RESOURCE}
+ * and all {@link ChunkedEvolution} classes into {@link #CHUNKED_RESOURCE}.
+ * Migration tree and chunked migrations are loaded from the registry without classpath scanning.
+ * <p>
+ * Registry format: one component per line {@code component=dependency1,dependency2}, lines started with {@code #} are comments.
+ * Chunked registry contains one binary class name per line. Both resources are written together.
+ * @author m0nster.mind
+ */
+@SupportedAnnotationTypes({ "ru.finex.evolution.Evolution", "ru.finex.evolution.ChunkedEvolution" })
+public class EvolutionProcessor extends AbstractProcessor {
+
+    public static final String REGISTRY_RESOURCE = "META-INF/finex-evolution/components";
+    public static final String CHUNKED_RESOURCE = "META-INF/finex-evolution/chunked";
+
+    private final List<String> lines = new ArrayList<>();
+    private final List<String> chunkedLines = new ArrayList<>();
+    private final List<Element> elements = new ArrayList<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(Evolution.class)) {
+            Evolution evolution = element.getAnnotation(Evolution.class);
+            lines.add("# " + element);
+            lines.add(evolution.value() + "=" + String.join(",", evolution.dependencies()));
+            elements.add(element);
+        }
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(ChunkedEvolution.class)) {
+            if (element instanceof TypeElement) {
+                chunkedLines.add(processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString());
+                elements.add(element);
+            }
+        }
+
+        if (roundEnv.processingOver() && !elements.isEmpty()) {
+            writeRegistry(REGISTRY_RESOURCE, lines);
+            writeRegistry(CHUNKED_RESOURCE, chunkedLines);
+        }
+
+        return false;
+    }
+
+    private void writeRegistry(String name, List<String> lines) {
+        try {
+            FileObject resource = processingEnv.getFiler().createResource(
+                StandardLocation.CLASS_OUTPUT,
+                "",
+                name,
+                elements.toArray(new Element[0])
+            );
+
+            try (Writer writer = resource.openWriter()) {
+                for (String line : lines) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(
+                Diagnostic.Kind.ERROR,
+                "Fail to write evolution registry " + name + ": " + e.getMessage()
+            );
+        }
+    }
+
+}
@@ -5,6 +5,7 @@ import com.google.inject.Injector;
 import com.google.inject.Key;
 import com.google.inject.Stage;
 import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
 import lombok.Cleanup;
 import lombok.SneakyThrows;
 import org.junit.jupiter.api.AfterEach;
@@ -13,11 +14,34 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.utility.DockerImageName;
+import ru.finex.evolution.impl.MigrationDao;
+import ru.finex.evolution.impl.MigrationSession;
+import ru.finex.evolution.impl.MigrationState;
+import ru.finex.evolution.impl.SchemaDataSource;
+import ru.finex.evolution.impl.ShardedMigrationServiceImpl;
+import ru.finex.evolution.impl.TenantMigrationServiceImpl;
 
 import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.sql.DataSource;
 
 /**
@@ -64,6 +88,519 @@ public class MigrationTest {
         verifyLogicSchema(dataSource);
     }
 
+    @Test
+    @SneakyThrows
+    public void unknownDurationOfEarlierHistory() {
+        MigrationService migrationService = injector.getInstance(MigrationService.class);
+        migrationService.autoMigration(false);
+
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        execute(dataSource, "update db_evolutions set duration_ms = null where component = 'auth'");
+
+        MigrationState state = new MigrationDao(dataSource, new MigrationConfig()).loadState(Arrays.asList("auth", "logic"));
+        Assertions.assertEquals(-1, state.getMigrations("auth").get(0).getDurationMillis());
+        Assertions.assertTrue(state.getMigrations("logic").get(0).getDurationMillis() >= 0);
+    }
+
+    @Test
+    @SneakyThrows
+    public void concurrentNodesApplyOnce() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> nodes = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                MigrationService node = createInjector(new MigrationConfig()).getInstance(MigrationService.class);
+                nodes.add(executor.submit(() -> node.autoMigration(false)));
+            }
+            for (Future<?> node : nodes) {
+                node.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        verifyAuthSchema(dataSource);
+        verifyLogicSchema(dataSource);
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) - count(distinct (component, version)) from db_evolutions"));
+    }
+
+    @Test
+    @SneakyThrows
+    public void waitingNodeRereadsStateAfterLock() {
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        MigrationDao migrationDao = new MigrationDao(dataSource, new MigrationConfig());
+        migrationDao.install();
+
+        CountDownLatch started = new CountDownLatch(1);
+        MigrationConfig waitingConfig = new MigrationConfig();
+        waitingConfig.getListeners().add(new MigrationListener() {
+            @Override
+            public void componentStarted(String component) {
+                started.countDown();
+            }
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (MigrationSession session = migrationDao.openSession()) {
+            migrationDao.lock(session, "auth");
+            MigrationService waitingNode = createInjector(waitingConfig).getInstance(MigrationService.class);
+            Future<?> waiting = executor.submit(() -> waitingNode.migrate("auth", false));
+            // state of component is read by waiting node before it is started
+            Assertions.assertTrue(started.await(1, TimeUnit.MINUTES));
+
+            // another node migrates component while the first one waits for lock
+            MigrationConfig config = new MigrationConfig();
+            config.setDistributedLock(false);
+            createInjector(config).getInstance(MigrationService.class).migrate("auth", false);
+            Assertions.assertFalse(waiting.isDone());
+
+            migrationDao.unlock(session, "auth");
+            waiting.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verifyAuthSchema(dataSource);
+        Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from db_evolutions where component = 'auth'"));
+    }
+
+    @Test
+    public void fingerprintSkipsUpToDateEvolutions() {
+        MigrationService migrationService = injector.getInstance(MigrationService.class);
+        migrationService.autoMigration(false);
+
+        // history is not read while stored fingerprints match
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        execute(dataSource, "update db_evolutions set checksum = checksum || '~' where component = 'auth'");
+        migrationService.autoMigration(false);
+        migrationService.migrate("logic", false);
+
+        execute(dataSource, "update db_evolutions_fingerprints set fingerprint = 'stale'");
+        RuntimeException exception = Assertions.assertThrows(RuntimeException.class, () -> migrationService.autoMigration(false));
+        Assertions.assertTrue(exception.getMessage().contains("has changes"), exception.getMessage());
+
+        execute(dataSource, "update db_evolutions set checksum = left(checksum, -1) where component = 'auth'");
+        migrationService.autoMigration(false);
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from db_evolutions_fingerprints where fingerprint = 'stale'"));
+        verifyAuthSchema(dataSource);
+        verifyLogicSchema(dataSource);
+    }
+
+    @Test
+    public void transactionPerComponent() {
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        execute(dataSource, "create table report_totals(id int)");
+
+        MigrationConfig config = new MigrationConfig();
+        config.setTransactionMode(TransactionMode.COMPONENT);
+        MigrationService componentService = createInjector(config).getInstance(MigrationService.class);
+        Assertions.assertThrows(RuntimeException.class, () -> componentService.autoMigration(false));
+        verifyAuthSchema(dataSource);
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from pg_tables where tablename = 'reports'"));
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from db_evolutions where component = 'reports'"));
+
+        MigrationService versionService = injector.getInstance(MigrationService.class);
+        Assertions.assertThrows(RuntimeException.class, () -> versionService.autoMigration(false));
+        Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from reports"));
+        Assertions.assertEquals(1, queryLong(dataSource, "select max(version) from db_evolutions where component = 'reports'"));
+    }
+
+    @Test
+    public void transactionPerPlan() {
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        execute(dataSource, "create table report_totals(id int)");
+
+        MigrationConfig config = new MigrationConfig();
+        config.setTransactionMode(TransactionMode.PLAN);
+        MigrationService migrationService = createInjector(config).getInstance(MigrationService.class);
+        Assertions.assertThrows(RuntimeException.class, () -> migrationService.autoMigration(false));
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from pg_tables where tablename in ('users', 'money_transactions', 'reports')"));
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from db_evolutions"));
+
+        execute(dataSource, "drop table report_totals");
+        migrationService.autoMigration(false);
+        verifyAuthSchema(dataSource);
+        verifyLogicSchema(dataSource);
+        Assertions.assertEquals(5, queryLong(dataSource, "select max(version) from db_evolutions where component = 'reports'"));
+    }
+
+    @Test
+    public void nontransactionalResumedFromCheckpoint() {
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        execute(dataSource, "create table report_archive(id int)");
+
+        MigrationService migrationService = injector.getInstance(MigrationService.class);
+        Assertions.assertThrows(RuntimeException.class, () -> migrationService.autoMigration(false));
+        Assertions.assertEquals(3, queryLong(dataSource, "select next_key from db_evolutions_progress where component = 'reports' and version = 3"));
+        Assertions.assertEquals(2, queryLong(dataSource, "select max(version) from db_evolutions where component = 'reports'"));
+        Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from report_rows"));
+
+        // executed statements are not repeated: insert would duplicate the row, create table would fail
+        execute(dataSource, "drop table report_archive");
+        migrationService.autoMigration(false);
+        Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from report_rows"));
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from db_evolutions_progress"));
+        Assertions.assertEquals(5, queryLong(dataSource, "select max(version) from db_evolutions where component = 'reports'"));
+        Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from pg_tables where tablename = 'report_archive'"));
+    }
+
+    @Test
+    public void invalidIndexOfCheckpointDroppedOnResume() {
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        execute(dataSource, "create table report_archive(id int)");
+
+        MigrationService migrationService = injector.getInstance(MigrationService.class);
+        Assertions.assertThrows(RuntimeException.class, () -> migrationService.autoMigration(false));
+
+        // crash while index is built concurrently: checkpoint is at index build, invalid index is left
+        execute(dataSource, "update db_evolutions_progress set next_key = 2 where component = 'reports' and version = 3");
+        execute(dataSource, "drop index report_rows_report_idx");
+        execute(dataSource, "insert into report_rows(report_id, amount) values(1, 20)");
+        Assertions.assertThrows(SQLException.class,
+            () -> execute(dataSource, "create unique index concurrently report_rows_report_idx on report_rows(report_id)"));
+        execute(dataSource, "delete from report_rows where amount = 20");
+        String validQuery = "select count(*) from pg_index i join pg_class c on c.oid = i.indexrelid "
+            + "where c.relname = 'report_rows_report_idx' and i.indisvalid";
+        Assertions.assertEquals(0, queryLong(dataSource, validQuery));
+
+        execute(dataSource, "drop table report_archive");
+        migrationService.autoMigration(false);
+        Assertions.assertEquals(1, queryLong(dataSource, validQuery));
+        Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from pg_indexes where indexname = 'report_rows_report_idx'"));
+        Assertions.assertEquals(5, queryLong(dataSource, "select max(version) from db_evolutions where component = 'reports'"));
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from db_evolutions_progress"));
+    }
+
+    @Test
+    public void chunkedEvolutionResumedFromCheckpoint() {
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        execute(dataSource, "create table report_archive(id int)");
+        MigrationService migrationService = injector.getInstance(MigrationService.class);
+        Assertions.assertThrows(RuntimeException.class, () -> migrationService.autoMigration(false));
+
+        // reports 1-5 are processed by chunks [1, 3), [3, 5), [5, 6), the second chunk fails on report 4
+        execute(dataSource, "insert into reports(user_id, title) select 1, 'report ' || i from generate_series(2, 5) i");
+        execute(dataSource, "create function report_totals_fail() returns trigger as $$ begin "
+            + "if new.report_id = 4 then raise exception 'report 4'; end if; return new; end $$ language plpgsql");
+        execute(dataSource, "create trigger report_totals_fail before insert on report_totals for each row execute procedure report_totals_fail()");
+        execute(dataSource, "drop table report_archive");
+        Assertions.assertThrows(RuntimeException.class, () -> migrationService.autoMigration(false));
+        Assertions.assertEquals(4, queryLong(dataSource, "select max(version) from db_evolutions where component = 'reports'"));
+        Assertions.assertEquals(3, queryLong(dataSource, "select next_key from db_evolutions_progress where component = 'reports' and version = 5"));
+        // failed chunk is rolled back, committed chunk is kept
+        Assertions.assertEquals(2, queryLong(dataSource, "select count(*) from report_totals"));
+
+        List<String> chunks = new ArrayList<>();
+        MigrationConfig config = new MigrationConfig();
+        config.setStatementEvents(true);
+        config.getListeners().add(new MigrationListener() {
+            @Override
+            public void statementStarted(String component, int version, int index, String statement) {
+                if (component.equals("reports") && version == 5) {
+                    chunks.add(statement);
+                }
+            }
+        });
+        execute(dataSource, "drop trigger report_totals_fail on report_totals");
+        createInjector(config).getInstance(MigrationService.class).autoMigration(false);
+
+        // resumed from checkpoint, the last chunk ends at the last key
+        Assertions.assertEquals(Arrays.asList("chunk [3, 5)", "chunk [5, 6)"), chunks);
+        Assertions.assertEquals(5, queryLong(dataSource, "select count(*) from report_totals"));
+        Assertions.assertEquals(10, queryLong(dataSource, "select total from report_totals where report_id = 1"));
+        Assertions.assertEquals(5, queryLong(dataSource, "select max(version) from db_evolutions where component = 'reports'"));
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from db_evolutions_progress"));
+    }
+
+    @Test
+    @SneakyThrows
+    public void deferredEvolutionAppliedAfterStartup() {
+        CountDownLatch release = new CountDownLatch(1);
+        MigrationConfig config = new MigrationConfig();
+        config.getListeners().add(new MigrationListener() {
+            @Override
+            @SneakyThrows
+            public void versionStarted(String component, int version) {
+                if (component.equals("reports") && version == 4) {
+                    release.await(1, TimeUnit.MINUTES);
+                }
+            }
+        });
+
+        MigrationService migrationService = createInjector(config).getInstance(MigrationService.class);
+        CompletableFuture<Void> deferred = migrationService.autoMigrationDeferred(false);
+        Assertions.assertSame(deferred, migrationService.getDeferredMigration());
+
+        // main run stops before deferred version, other components are migrated
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        verifyAuthSchema(dataSource);
+        verifyLogicSchema(dataSource);
+        Assertions.assertFalse(deferred.isDone());
+        Assertions.assertEquals(3, queryLong(dataSource, "select max(version) from db_evolutions where component = 'reports'"));
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from pg_indexes where indexname = 'report_totals_total_idx'"));
+
+        release.countDown();
+        deferred.get(1, TimeUnit.MINUTES);
+        Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from pg_indexes where indexname = 'report_totals_total_idx'"));
+        Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from db_evolutions where component = 'reports' and version = 4 "
+            + "and up_queries::text like '%create index report_totals_total_idx%' and down_queries::text like '%drop index%'"));
+
+        // deferred version is up to date for the next run
+        Assertions.assertTrue(migrationService.autoMigrationDeferred(false).isDone());
+        Assertions.assertEquals(5, queryLong(dataSource, "select count(*) from db_evolutions where component = 'reports'"));
+    }
+
+    @Test
+    @SneakyThrows
+    public void versionRetriedAfterLockTimeout() {
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        injector.getInstance(MigrationService.class).autoMigration(false);
+        forgetLogsAndReportTotals(dataSource);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (Connection blocker = dataSource.getConnection()) {
+            blocker.setAutoCommit(false);
+            // reports 2 references reports, so it waits for the lock of blocker
+            execute(blocker, "lock table reports in share mode");
+
+            AtomicInteger attempts = new AtomicInteger();
+            MigrationService noRetryService = createInjector(retryConfig(TransactionMode.VERSION, 0, attempts)).getInstance(MigrationService.class);
+            Assertions.assertThrows(RuntimeException.class, () -> noRetryService.autoMigration(false));
+            Assertions.assertEquals(1, attempts.get());
+            // the previous version is committed and is not held by failed one
+            Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from db_evolutions where component = 'logs'"));
+            Assertions.assertEquals(1, queryLong(dataSource, "select max(version) from db_evolutions where component = 'reports'"));
+
+            attempts.set(0);
+            MigrationService migrationService = createInjector(retryConfig(TransactionMode.VERSION, 30_000, attempts)).getInstance(MigrationService.class);
+            Future<?> migration = executor.submit(() -> migrationService.autoMigration(false));
+            Thread.sleep(1_000);
+            Assertions.assertFalse(migration.isDone());
+            blocker.commit();
+            migration.get(1, TimeUnit.MINUTES);
+            Assertions.assertTrue(attempts.get() > 1, "Version is not retried");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assertions.assertEquals(5, queryLong(dataSource, "select max(version) from db_evolutions where component = 'reports'"));
+        Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from report_totals"));
+    }
+
+    @Test
+    @SneakyThrows
+    public void planVersionNotRetriedAfterPreviousWork() {
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        injector.getInstance(MigrationService.class).autoMigration(false);
+        forgetLogsAndReportTotals(dataSource);
+
+        AtomicInteger attempts = new AtomicInteger();
+        MigrationService migrationService = createInjector(retryConfig(TransactionMode.PLAN, 30_000, attempts)).getInstance(MigrationService.class);
+        try (Connection blocker = dataSource.getConnection()) {
+            blocker.setAutoCommit(false);
+            execute(blocker, "lock table reports in share mode");
+
+            // plan transaction holds logs 1, so reports 2 fails at once instead of holding its locks during backoff
+            long start = System.nanoTime();
+            Assertions.assertThrows(RuntimeException.class, () -> migrationService.autoMigration(false));
+            Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10), "Version is retried");
+            Assertions.assertEquals(1, attempts.get());
+            Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from pg_tables where tablename in ('app_logs', 'report_totals')"));
+            Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from db_evolutions where component = 'logs'"));
+            blocker.commit();
+        }
+
+        attempts.set(0);
+        migrationService.autoMigration(false);
+        Assertions.assertEquals(1, attempts.get());
+        Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from db_evolutions where component = 'logs'"));
+        Assertions.assertEquals(5, queryLong(dataSource, "select max(version) from db_evolutions where component = 'reports'"));
+    }
+
+    @Test
+    public void planExplainsTablesCreatedByPlan() {
+        MigrationService migrationService = injector.getInstance(MigrationService.class);
+        MigrationPlan plan = migrationService.planAll();
+
+        List<MigrationPlan.Statement> dml = new ArrayList<>();
+        plan.getSteps().stream().filter(step -> step.getStatements() != null)
+            .forEach(step -> step.getStatements().stream().filter(MigrationPlan.Statement::isDml).forEach(dml::add));
+        Assertions.assertFalse(dml.isEmpty());
+        dml.forEach(statement -> Assertions.assertNull(statement.getExplainError(), statement.getSql()));
+
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from pg_tables where tablename in ('users', 'money_transactions', 'reports')"));
+    }
+
+    @Test
+    public void planLeavesSchemaAndLocksUnchanged() {
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        String schemaQuery = "select string_agg(c.relname || ':' || c.relkind, ',' order by c.relname) from pg_class c "
+            + "join pg_namespace n on n.oid = c.relnamespace where n.nspname not in ('pg_catalog', 'information_schema', 'pg_toast')";
+        String locksQuery = "select count(*) from pg_locks where locktype = 'relation' and pid <> pg_backend_pid()";
+        String schema = queryString(dataSource, schemaQuery);
+        long locks = queryLong(dataSource, locksQuery);
+
+        MigrationService migrationService = injector.getInstance(MigrationService.class);
+        MigrationPlan plan = migrationService.planAll();
+
+        Assertions.assertEquals(schema, queryString(dataSource, schemaQuery));
+        Assertions.assertEquals(locks, queryLong(dataSource, locksQuery));
+
+        List<MigrationPlan.Statement> statements = new ArrayList<>();
+        plan.getSteps().stream().filter(step -> step.getComponent().equals("reports") && step.getVersion() == 3)
+            .forEach(step -> statements.addAll(step.getStatements()));
+        Assertions.assertEquals(4, statements.size());
+        Assertions.assertEquals(MigrationPlan.Kind.CATALOG, statements.get(0).getKind());
+        Assertions.assertTrue(statements.get(0).isExecuted());
+        Assertions.assertTrue(statements.get(1).isDml());
+        Assertions.assertFalse(statements.get(1).isExecuted());
+        Assertions.assertNull(statements.get(1).getExplainError());
+        Assertions.assertEquals(MigrationPlan.Kind.DDL, statements.get(2).getKind());
+        Assertions.assertFalse(statements.get(2).isExecuted());
+        Assertions.assertTrue(plan.getUnknownStatements().isEmpty());
+    }
+
+    @Test
+    @SneakyThrows
+    public void tenantFailureIsolated() {
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        execute(dataSource, "create schema tenant_a");
+        execute(dataSource, "create schema tenant_b");
+        execute(dataSource, "create table tenant_b.report_totals(id int)");
+
+        TenantMigrationService tenantService = injector.getInstance(TenantMigrationServiceImpl.class);
+        MigrationResult result = tenantService.autoMigration(Arrays.asList("tenant_a", "tenant_b", "tenant_missing"), false);
+        Assertions.assertEquals(Collections.singletonList("tenant_a"), result.getMigrated());
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("tenant_b", "tenant_missing")), result.getFailures().keySet());
+
+        Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from tenant_a.users"));
+        Assertions.assertEquals(5, queryLong(dataSource, "select max(version) from tenant_a.db_evolutions where component = 'reports'"));
+        Assertions.assertEquals(1, queryLong(dataSource, "select max(version) from tenant_b.db_evolutions where component = 'reports'"));
+        Assertions.assertEquals(1, queryLong(dataSource, "select count(*) from tenant_b.users"));
+        // missing schema is not replaced by the next schema of search path
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from public.db_evolutions"));
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from pg_tables where schemaname = 'public' and tablename = 'users'"));
+
+        @Cleanup Connection connection = new SchemaDataSource(dataSource, "tenant_a", "public").getConnection();
+        @Cleanup Statement statement = connection.createStatement();
+        @Cleanup ResultSet resultSet = statement.executeQuery("select current_setting('search_path')");
+        Assertions.assertTrue(resultSet.next(), "Empty result set");
+        Assertions.assertEquals("\"tenant_a\", public", resultSet.getString(1));
+    }
+
+    @Test
+    public void shardFailureReportedPerTarget() {
+        DataSource dataSource = injector.getInstance(Key.get(DataSource.class, Names.named("Migration")));
+        execute(dataSource, "create database shard_a");
+        execute(dataSource, "create database shard_b");
+        DataSource shardA = createDataSource("shard_a");
+        DataSource shardB = createDataSource("shard_b");
+        execute(shardB, "create table report_totals(id int)");
+
+        Map<String, DataSource> shards = new LinkedHashMap<>();
+        shards.put("shard-a", shardA);
+        shards.put("shard-b", shardB);
+        shards.put("shard-missing", createDataSource("shard_missing"));
+        ShardedMigrationService shardedService = injector.getInstance(ShardedMigrationServiceImpl.class);
+        MigrationResult result = shardedService.autoMigration(shards, false);
+        Assertions.assertEquals(Collections.singletonList("shard-a"), result.getMigrated());
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("shard-b", "shard-missing")), result.getFailures().keySet());
+        Assertions.assertEquals(Collections.emptyList(), result.getSkipped());
+
+        // every shard keeps own history, database of service is not migrated
+        verifyAuthSchema(shardA);
+        verifyLogicSchema(shardA);
+        Assertions.assertEquals(5, queryLong(shardA, "select max(version) from db_evolutions where component = 'reports'"));
+        verifyAuthSchema(shardB);
+        Assertions.assertEquals(1, queryLong(shardB, "select max(version) from db_evolutions where component = 'reports'"));
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from db_evolutions"));
+        Assertions.assertEquals(0, queryLong(dataSource, "select count(*) from pg_tables where tablename = 'users'"));
+
+        // failed shard is completed by the next run, migrated shard stays up to date
+        execute(shardB, "drop table report_totals");
+        shards.remove("shard-missing");
+        Assertions.assertTrue(shardedService.autoMigration(shards, false).isSuccessful());
+        Assertions.assertEquals(5, queryLong(shardB, "select max(version) from db_evolutions where component = 'reports'"));
+        Assertions.assertEquals(0, queryLong(shardA, "select count(*) - count(distinct (component, version)) from db_evolutions"));
+    }
+
+    private Injector createInjector(MigrationConfig config) {
+        return Guice.createInjector(Stage.PRODUCTION, Modules.override(
+            new DbModule(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword())
+        ).with(binder -> binder.bind(MigrationConfig.class).toInstance(config)));
+    }
+
+    private DataSource createDataSource(String database) {
+        Properties properties = new Properties();
+        properties.put("user", postgres.getUsername());
+        properties.put("password", postgres.getPassword());
+        String url = postgres.getJdbcUrl().replace("/" + postgres.getDatabaseName() + "?", "/" + database + "?");
+        return new SimpleDataSource(url, properties);
+    }
+
+    /**
+     * Config of lock timeout retries counting attempts of reports version 2.
+     */
+    private static MigrationConfig retryConfig(TransactionMode transactionMode, long retryBudget, AtomicInteger attempts) {
+        MigrationConfig config = new MigrationConfig();
+        config.setTransactionMode(transactionMode);
+        config.setLockTimeout(100);
+        config.setRetryBackoff(100);
+        config.setRetryBudget(retryBudget);
+        config.setStatementEvents(true);
+        config.getListeners().add(new MigrationListener() {
+            @Override
+            public void statementStarted(String component, int version, int index, String statement) {
+                if (component.equals("reports") && version == 2) {
+                    attempts.incrementAndGet();
+                }
+            }
+        });
+        return config;
+    }
+
+    /**
+     * Makes logs and reports 2+ pending again, reports version 1 stays applied.
+     */
+    private static void forgetLogsAndReportTotals(DataSource dataSource) {
+        execute(dataSource, "drop table app_logs, report_archive, report_rows, report_totals");
+        execute(dataSource, "delete from db_evolutions where component = 'logs' or component = 'reports' and version > 1");
+        execute(dataSource, "delete from db_evolutions_fingerprints");
+    }
+
+    @SneakyThrows
+    private static long queryLong(DataSource dataSource, String query) {
+        @Cleanup Connection connection = dataSource.getConnection();
+        @Cleanup Statement statement = connection.createStatement();
+        @Cleanup ResultSet resultSet = statement.executeQuery(query);
+        Assertions.assertTrue(resultSet.next(), "Empty result set");
+        return resultSet.getLong(1);
+    }
+
+    @SneakyThrows
+    private static String queryString(DataSource dataSource, String query) {
+        @Cleanup Connection connection = dataSource.getConnection();
+        @Cleanup Statement statement = connection.createStatement();
+        @Cleanup ResultSet resultSet = statement.executeQuery(query);
+        Assertions.assertTrue(resultSet.next(), "Empty result set");
+        return resultSet.getString(1);
+    }
+
+    @SneakyThrows
+    private static void execute(DataSource dataSource, String query) {
+        @Cleanup Connection connection = dataSource.getConnection();
+        @Cleanup Statement statement = connection.createStatement();
+        statement.execute(query);
+    }
+
+    @SneakyThrows
+    private static void execute(Connection connection, String query) {
+        @Cleanup Statement statement = connection.createStatement();
+        statement.execute(query);
+    }
+
     @SneakyThrows
     private static void verifyAuthSchema(DataSource dataSource) {
         @Cleanup Connection connection = dataSource.getConnection();
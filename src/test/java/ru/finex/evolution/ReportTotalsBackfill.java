@@ -0,0 +1,51 @@
+package ru.finex.evolution;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Calculates totals of reports by chunks of report ids.
+ *
+ * @author m0nster.mind
+ */
+@ChunkedEvolution(component = "reports", version = 5, name = "totals", chunkSize = 2)
+public class ReportTotalsBackfill implements ChunkedMigration {
+
+    @Override
+    public long getFirstKey(Connection connection) throws SQLException {
+        return queryLong(connection, "select coalesce(min(id), 0) from reports");
+    }
+
+    @Override
+    public long getLastKey(Connection connection) throws SQLException {
+        return queryLong(connection, "select coalesce(max(id), -1) from reports");
+    }
+
+    @Override
+    public void processChunk(Connection connection, long fromKey, long toKey) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+            "insert into report_totals(report_id, total)\n" +
+            "select r.id, coalesce(sum(rr.amount), 0)\n" +
+            "from reports r\n" +
+            "left join report_rows rr on rr.report_id = r.id\n" +
+            "where r.id >= ? and r.id < ?\n" +
+            "group by r.id\n" +
+            "on conflict (report_id) do update set total = excluded.total")) {
+            statement.setLong(1, fromKey);
+            statement.setLong(2, toKey);
+            statement.executeUpdate();
+        }
+    }
+
+    private static long queryLong(Connection connection, String query) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(query)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+}
@@ -17,4 +17,7 @@ public interface Schemas {
     @Evolution("logs")
     interface LogSchema { }
 
+    @Evolution(value = "reports", dependencies = "auth")
+    interface ReportSchema { }
+
 }
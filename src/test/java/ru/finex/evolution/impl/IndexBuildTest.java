@@ -0,0 +1,40 @@
+package ru.finex.evolution.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author m0nster.mind
+ */
+public class IndexBuildTest {
+
+    @Test
+    public void createIndex() {
+        IndexBuild build = IndexBuild.parse("-- build\ncreate unique index concurrently if not exists Users_Name_idx on only public.\"Users\"(name)");
+        Assertions.assertEquals(new IndexBuild("public", "Users", "users_name_idx", false), build);
+        Assertions.assertTrue(build.matches("users_name_idx", "Users"));
+        Assertions.assertFalse(build.matches("users_name_idx_2", "Users"));
+        Assertions.assertFalse(build.matches("users_name_idx", "users"));
+
+        Assertions.assertNull(IndexBuild.parse("create index concurrently on users(name)"));
+        Assertions.assertNull(IndexBuild.parse("create index users_name_idx on users(name)"));
+        Assertions.assertNull(IndexBuild.parse("vacuum users"));
+    }
+
+    @Test
+    public void reindex() {
+        IndexBuild index = IndexBuild.parse("reindex (verbose) index concurrently users_name_idx");
+        Assertions.assertEquals(new IndexBuild("", null, "users_name_idx", true), index);
+        Assertions.assertTrue(index.matches("users_name_idx_ccnew", "users"));
+        Assertions.assertTrue(index.matches("users_name_idx_ccnew1", "users"));
+        Assertions.assertFalse(index.matches("users_name_idx", "users"));
+        Assertions.assertFalse(index.matches("users_name_idx_2_ccnew", "users"));
+
+        IndexBuild table = IndexBuild.parse("REINDEX TABLE CONCURRENTLY app.users");
+        Assertions.assertEquals(new IndexBuild("app", "users", null, true), table);
+        Assertions.assertTrue(table.matches("users_pkey_ccnew", "users"));
+        Assertions.assertFalse(table.matches("users_pkey", "users"));
+        Assertions.assertFalse(table.matches("orders_pkey_ccnew", "orders"));
+    }
+
+}
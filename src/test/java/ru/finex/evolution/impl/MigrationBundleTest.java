@@ -0,0 +1,97 @@
+package ru.finex.evolution.impl;
+
+import com.google.common.collect.ListMultimap;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.finex.evolution.MigrationConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * @author m0nster.mind
+ */
+public class MigrationBundleTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void compileAndRead() throws Exception {
+        Path root = classesRoot();
+        Path bundle = directory.resolve("evolutions.idx");
+        Assertions.assertEquals(7, MigrationBundleCompiler.compile(root, bundle));
+
+        ByteBuffer buffer = MigrationBundle.load(bundle.toUri().toURL());
+        ListMultimap<String, MigrationData> bundled = MigrationParser.group(MigrationBundle.read(buffer));
+        Assertions.assertEquals(7, bundled.size());
+
+        MigrationData auth = bundled.get("auth").get(0);
+        Assertions.assertEquals(1, auth.getVersion());
+        Assertions.assertEquals("initial", auth.getName());
+        Assertions.assertEquals(1, auth.getResources().size());
+        Assertions.assertEquals("evolution/auth_1_initial.sql", auth.getResources().get(0));
+
+        String content = new String(Files.readAllBytes(root.resolve(auth.getResources().get(0))), StandardCharsets.UTF_8);
+        MigrationData parsed = MigrationParser.group(Collections.singletonList(MigrationParser.createMigration(auth.getResources().get(0), new StringReader(content))))
+            .get("auth")
+            .get(0);
+        Assertions.assertEquals(parsed.getUpQueries(), auth.getUpQueries());
+        Assertions.assertEquals(parsed.getDownQueries(), auth.getDownQueries());
+        Assertions.assertEquals(parsed.getChecksum(), auth.getChecksum());
+    }
+
+    @Test
+    public void deferredFlag() throws Exception {
+        MigrationData data = MigrationParser.createMigration("evolution/test_1_script.sql",
+            new StringReader("# --- !Deferred\n# --- !Ups lock_timeout=5s\ncreate index a_idx on a(id);\n"));
+        data.setChecksum("checksum");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        MigrationBundle.write(Collections.singletonList(data), output);
+        MigrationData bundled = MigrationBundle.read(ByteBuffer.wrap(output.toByteArray())).get(0);
+
+        Assertions.assertTrue(bundled.isDeferred());
+        Assertions.assertEquals("5s", bundled.getLockTimeout());
+        Assertions.assertNull(bundled.getStatementTimeout());
+        Assertions.assertEquals(data.getUpQueries(), bundled.getUpQueries());
+    }
+
+    @Test
+    public void releaseBundleReadIntoMemory() throws Exception {
+        Path bundle = directory.resolve("evolutions.idx");
+        MigrationBundleCompiler.compile(classesRoot(), bundle);
+
+        MigrationData mapped = MigrationBundle.read(MigrationBundle.load(bundle.toUri().toURL())).get(0);
+        MigrationParser.releaseQueries(mapped);
+        Assertions.assertFalse(mapped.isReleased());
+        Assertions.assertTrue(MigrationBundle.isMapped(mapped.getUpQueries()));
+
+        MigrationData data = MigrationBundle.read(ByteBuffer.wrap(Files.readAllBytes(bundle))).get(0);
+        List<String> upQueries = new ArrayList<>(data.getUpQueries());
+        MigrationParser.releaseQueries(data);
+        Assertions.assertTrue(data.isReleased());
+        Assertions.assertTrue(data.getUpQueries().isEmpty());
+
+        MigrationData loaded = new MigrationParser(null, new MigrationConfig()).loadQueries(data);
+        Assertions.assertEquals(upQueries, loaded.getUpQueries());
+        Assertions.assertEquals(data.getChecksum(), loaded.getChecksum());
+    }
+
+    private static Path classesRoot() throws URISyntaxException {
+        return Paths.get(Objects.requireNonNull(MigrationBundleTest.class.getClassLoader().getResource("evolution")).toURI())
+            .getParent();
+    }
+
+}
@@ -0,0 +1,54 @@
+package ru.finex.evolution.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * @author m0nster.mind
+ */
+public class MigrationExecutorsTest {
+
+    @Test
+    public void mapKeepsOrder() {
+        List<Integer> values = IntStream.range(0, 200)
+            .boxed()
+            .collect(Collectors.toList());
+
+        List<String> result = MigrationExecutors.map(values, value -> {
+            sleep(ThreadLocalRandom.current().nextInt(3));
+            return "value-" + value;
+        }, 8, "test");
+
+        Assertions.assertEquals(values.stream().map(value -> "value-" + value).collect(Collectors.toList()), result);
+    }
+
+    @Test
+    public void mapRethrowsFailure() {
+        List<Integer> values = IntStream.range(0, 50)
+            .boxed()
+            .collect(Collectors.toList());
+
+        IllegalStateException exception = Assertions.assertThrows(IllegalStateException.class, () -> MigrationExecutors.map(values, value -> {
+            if (value == 10) {
+                throw new IllegalStateException("value " + value);
+            }
+            return value;
+        }, 4, "test"));
+        Assertions.assertEquals("value 10", exception.getMessage());
+    }
+
+    private static void sleep(int millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
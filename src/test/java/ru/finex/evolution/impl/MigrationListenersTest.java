@@ -0,0 +1,89 @@
+package ru.finex.evolution.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.finex.evolution.MigrationListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author m0nster.mind
+ */
+public class MigrationListenersTest {
+
+    @Test
+    public void isolatesListenerFailure() {
+        List<String> events = new ArrayList<>();
+        MigrationListener failing = new MigrationListener() {
+            @Override
+            public void versionStarted(String component, int version) {
+                throw new IllegalStateException("listener");
+            }
+        };
+        MigrationListener recording = new MigrationListener() {
+            @Override
+            public void versionStarted(String component, int version) {
+                events.add(component + " " + version);
+            }
+        };
+
+        MigrationListener listener = MigrationListeners.create(Arrays.asList(failing, recording));
+        listener.versionStarted("logic", 1);
+
+        Assertions.assertEquals(Arrays.asList("logic 1"), events);
+    }
+
+    @Test
+    public void skipsMissingJfr() {
+        Assertions.assertFalse(MigrationListeners.isJfrAvailable("jdk.jfr.MissingEvent"));
+        Assertions.assertEquals(0, ((MigrationListeners) MigrationListeners.create(Collections.emptyList(), false)).size());
+
+        List<String> events = new ArrayList<>();
+        MigrationListener unlinked = new MigrationListener() {
+            @Override
+            public void componentStarted(String component) {
+                throw new NoClassDefFoundError("jdk/jfr/Event");
+            }
+        };
+        MigrationListener recording = new MigrationListener() {
+            @Override
+            public void componentStarted(String component) {
+                events.add(component);
+            }
+        };
+
+        MigrationListener listener = MigrationListeners.create(Arrays.asList(unlinked, recording), false);
+        listener.componentStarted("logic");
+
+        Assertions.assertEquals(Arrays.asList("logic"), events);
+    }
+
+    @Test
+    public void recordsMetrics() {
+        List<String> metrics = new ArrayList<>();
+        MigrationListener listener = new MetricsMigrationListener(new MetricsMigrationListener.Recorder() {
+            @Override
+            public void timer(String name, long durationNanos, String... tags) {
+                metrics.add(name + " " + durationNanos + " " + String.join(",", tags));
+            }
+
+            @Override
+            public void counter(String name, long amount, String... tags) {
+                metrics.add(name + " " + amount + " " + String.join(",", tags));
+            }
+        });
+
+        listener.versionCompleted("logic", 1, 100, 5, null);
+        listener.versionCompleted("logic", 2, 200, -1, new IllegalStateException());
+
+        Assertions.assertEquals(Arrays.asList(
+            "evolution.version 100 component,logic,outcome,success",
+            "evolution.rows 5 component,logic",
+            "evolution.version 200 component,logic,outcome,failure"
+        ), metrics);
+    }
+
+}
@@ -0,0 +1,372 @@
+package ru.finex.evolution.impl;
+
+import com.google.common.collect.ListMultimap;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.finex.evolution.ChunkedEvolution;
+import ru.finex.evolution.ChunkedMigration;
+import ru.finex.evolution.MigrationConfig;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @author m0nster.mind
+ */
+public class MigrationParserTest {
+
+    @Test
+    public void statements() throws Exception {
+        MigrationData data = parse(
+            "# --- !Ups\n" +
+            "-- users; table\n" +
+            "create table users(\n" +
+            "    id serial primary key, -- id; column\n" +
+            "    name varchar not null default 'a;b' /* ; /* nested; */ */\n" +
+            ");\n" +
+            "\n" +
+            "insert into users(name) values(E'it\\'s;'), ('x'';y');  \n" +
+            "create function f() returns int as $body$ begin return 1; end $body$ language plpgsql;\n" +
+            "create function g() returns int as $$\n" +
+            "begin\n" +
+            "# not a directive inside of body\n" +
+            "    return 1;;\n" +
+            "end;;\n" +
+            "$$ language plpgsql;\n" +
+            "select \"a;b\" from users\n" +
+            "\n" +
+            "# --- !Downs\n" +
+            "drop table if exists users;"
+        );
+
+        Assertions.assertEquals(Arrays.asList(
+            "-- users; table\ncreate table users(\n    id serial primary key, -- id; column\n" +
+                "    name varchar not null default 'a;b' /* ; /* nested; */ */\n)",
+            "insert into users(name) values(E'it\\'s;'), ('x'';y')  ",
+            "create function f() returns int as $body$ begin return 1; end $body$ language plpgsql",
+            "create function g() returns int as $$\nbegin\n# not a directive inside of body\n    return 1;\nend;\n$$ language plpgsql",
+            "select \"a;b\" from users"
+        ), data.getUpQueries());
+        Assertions.assertEquals(Collections.singletonList("drop table if exists users"), data.getDownQueries());
+    }
+
+    @Test
+    public void skipsDirectivesAndBlankStatements() throws Exception {
+        MigrationData data = parse(
+            "#comment\n" +
+            "create table a(\n" +
+            "#skipped\n" +
+            "id int);\n" +
+            " ; \n" +
+            "#   ---   !Downs   \n" +
+            "drop table a;\n"
+        );
+
+        Assertions.assertEquals(Collections.singletonList("create table a(\nid int)"), data.getUpQueries());
+        Assertions.assertEquals(Collections.singletonList("drop table a"), data.getDownQueries());
+    }
+
+    @Test
+    public void checksumCompatibleWithLineParser() throws Exception {
+        List<String> scripts = Arrays.asList(
+            "# --- !Ups\ncreate table users(\n    id serial primary key,\n    \"name\" varchar not null\n);\n\n" +
+                "insert into users(\"name\") values('test_user');\n\n# --- !Downs\ndrop table if exists users;",
+            "# --- !Ups\r\ncreate table a(id int);  \r\n\r\n-- comment\r\ninsert into a values(1);\r\n# --- !Downs\r\ndrop table a;\r\n",
+            "# --- !Ups\ncreate function f() returns void as $$\nbegin\n    perform 1;;\nend;;\n$$ language plpgsql;\n" +
+                "# --- !Downs\ndrop function f();\n-- trailing comment\n",
+            "# --- !Ups\n-- create users; and roles\ncreate table users(id int);\ninsert into users values(1); insert into users values(2);\n" +
+                "insert into t values('a;b');\ncreate function f() as $$ select 1;; $$;\n# --- !Downs\n/* drop; */ drop table users;\n"
+        );
+
+        for (String script : scripts) {
+            Assertions.assertEquals(legacyChecksum(script), parse(script).getChecksum(), script);
+            MigrationData streamed = MigrationParser.createStreamedMigration("evolution/test_1_script.sql", new StringReader(script));
+            Assertions.assertEquals(legacyChecksum(script), streamed.getChecksum(), script);
+        }
+
+        Map<String, String> resources = new HashMap<>();
+        resources.put("evolution/test_1_a.sql", scripts.get(3));
+        resources.put("evolution/test_1_b.sql", scripts.get(0));
+        List<MigrationData> parts = new ArrayList<>();
+        for (Map.Entry<String, String> resource : new TreeMap<>(resources).entrySet()) {
+            parts.add(MigrationParser.createMigration(resource.getKey(), new StringReader(resource.getValue())));
+        }
+        MigrationData joined = MigrationParser.group(parts, resource -> new StringReader(resources.get(resource))).get("test").get(0);
+        Assertions.assertEquals(legacyChecksum(scripts.get(3), scripts.get(0)), joined.getChecksum());
+    }
+
+    @Test
+    public void legacyChecksumOfNonAsciiScript() throws Exception {
+        String script = "# --- !Ups\ninsert into users(\"name\") values('Пользователь');\n\n# --- !Downs\ndelete from users where \"name\" = 'Пользователь';\n";
+        MigrationData data = parse(script);
+        Assertions.assertEquals(legacyChecksum(StandardCharsets.UTF_8, script), data.getChecksum());
+
+        Charset charset = Charset.forName("windows-1251");
+        String legacy = MigrationParser.calculateLegacyChecksum(data, resource -> new StringReader(script), charset);
+        Assertions.assertEquals(legacyChecksum(charset, script), legacy);
+        Assertions.assertNotEquals(data.getChecksum(), legacy);
+        Assertions.assertEquals(data.getChecksum(), MigrationParser.calculateLegacyChecksum(data, resource -> new StringReader(script), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void streamedChecksum() throws Exception {
+        String script = "# --- !Ups\ncreate table a(id int);\ninsert into a values(1);\n# --- !Downs\ndrop table a;\n";
+        MigrationData data = parse(script);
+        MigrationData streamed = MigrationParser.createStreamedMigration("evolution/test_1_script.sql", new StringReader(script));
+
+        Assertions.assertTrue(streamed.isStreamed());
+        Assertions.assertTrue(streamed.getUpQueries().isEmpty());
+        Assertions.assertEquals(data.getDownQueries(), streamed.getDownQueries());
+        Assertions.assertEquals(data.getChecksum(), streamed.getChecksum());
+    }
+
+    @Test
+    public void deferredDirective() throws Exception {
+        String script = "# --- !Ups\ncreate index concurrently a_idx on a(id);\n# --- !Downs\ndrop index a_idx;\n";
+        MigrationData required = parse(script);
+        MigrationData deferred = parse("# --- !Deferred\n" + script);
+        MigrationData streamed = MigrationParser.createStreamedMigration("evolution/test_1_script.sql", new StringReader("# --- !Deferred\n" + script));
+
+        Assertions.assertFalse(required.isDeferred());
+        Assertions.assertTrue(deferred.isDeferred());
+        Assertions.assertTrue(streamed.isDeferred());
+        Assertions.assertEquals(required.getUpQueries(), deferred.getUpQueries());
+        Assertions.assertEquals(required.getChecksum(),
+            deferred.getChecksum());
+
+        Assertions.assertFalse(MigrationData.combine(required, deferred).isDeferred());
+        Assertions.assertTrue(MigrationData.combine(deferred, deferred).isDeferred());
+    }
+
+    @Test
+    public void nontransactionalDirective() throws Exception {
+        String script = "create index concurrently a_idx on a(id);\n# --- !Downs\ndrop index a_idx;\n";
+        MigrationData required = parse("# --- !Ups\n" + script);
+        MigrationData nontransactional = parse("#  ---  !Ups   nontransactional\n" + script);
+
+        Assertions.assertFalse(required.isNontransactional());
+        Assertions.assertTrue(nontransactional.isNontransactional());
+        Assertions.assertFalse(parse("# --- !Ups\n" + script.replace("!Downs", "!Downs nontransactional")).isNontransactional());
+        Assertions.assertEquals(required.getUpQueries(), nontransactional.getUpQueries());
+        Assertions.assertEquals(required.getChecksum(),
+            nontransactional.getChecksum());
+        Assertions.assertTrue(MigrationData.combine(required, nontransactional).isNontransactional());
+    }
+
+    @Test
+    public void timeoutOptions() throws Exception {
+        String script = "alter table a add column b int;\n# --- !Downs\nalter table a drop column b;\n";
+        MigrationData plain = parse("# --- !Ups\n" + script);
+        MigrationData limited = parse("# --- !Ups nontransactional lock_timeout=5s statement_timeout=10min\n" + script);
+
+        Assertions.assertNull(plain.getLockTimeout());
+        Assertions.assertNull(plain.getStatementTimeout());
+        Assertions.assertTrue(limited.isNontransactional());
+        Assertions.assertEquals("5s", limited.getLockTimeout());
+        Assertions.assertEquals("10min", limited.getStatementTimeout());
+        // timeouts don't change checksum: they could be tuned for applied evolution
+        Assertions.assertEquals(plain.getChecksum(),
+            limited.getChecksum());
+        Assertions.assertEquals("5s", MigrationData.combine(plain, limited).getLockTimeout());
+    }
+
+    @Test
+    public void chunkedMigration() {
+        MigrationData data = MigrationParser.createChunkedMigration(Backfill.class);
+
+        Assertions.assertEquals("chunked_test", data.getComponent());
+        Assertions.assertEquals(2, data.getVersion());
+        Assertions.assertEquals("backfill", data.getName());
+        Assertions.assertEquals(100, data.getChunked().getChunkSize());
+        Assertions.assertTrue(data.getChunked().getMigration() instanceof Backfill);
+        Assertions.assertEquals(MigrationParser.createChunkedMigration(Backfill.class).getChecksum(), data.getChecksum());
+
+        MessageDigest digest = MigrationChecksums.getDigest();
+        digest.reset();
+        MigrationChecksums.update(digest, "chunked " + Backfill.class.getName());
+        Assertions.assertEquals(MigrationChecksums.complete(digest), data.getChecksum());
+
+        MigrationData script = migration("chunked_test", 2, "a");
+        Assertions.assertThrows(IllegalStateException.class, () -> MigrationParser.group(Arrays.asList(script, data)));
+        Assertions.assertThrows(IllegalStateException.class, () -> MigrationParser.createChunkedMigration(String.class));
+    }
+
+    @Test
+    public void releaseAndLoadQueries() throws Exception {
+        String resource = "evolution/auth_1_initial.sql";
+        MigrationData data;
+        try (Reader reader = MigrationParser.openResource(getClass().getClassLoader(), resource)) {
+            data = MigrationParser.group(Collections.singletonList(MigrationParser.createMigration(resource, reader))).get("auth").get(0);
+        }
+        List<String> upQueries = data.getUpQueries();
+        List<String> downQueries = data.getDownQueries();
+
+        MigrationParser.releaseQueries(data);
+        Assertions.assertTrue(data.isReleased());
+        Assertions.assertTrue(data.getUpQueries().isEmpty());
+        Assertions.assertTrue(data.getDownQueries().isEmpty());
+
+        MigrationParser parser = new MigrationParser(null, new MigrationConfig());
+        MigrationData loaded = parser.loadQueries(data);
+        Assertions.assertEquals(upQueries, loaded.getUpQueries());
+        Assertions.assertEquals(downQueries, loaded.getDownQueries());
+        Assertions.assertEquals(data.getChecksum(), loaded.getChecksum());
+        Assertions.assertTrue(data.getUpQueries().isEmpty());
+
+        data.setChecksum("changed");
+        Assertions.assertThrows(IllegalStateException.class, () -> parser.loadQueries(data));
+    }
+
+    @Test
+    public void groupVersions() {
+        List<MigrationData> migrations = new ArrayList<>();
+        for (int version = 5000; version > 0; version--) {
+            migrations.add(migration("logic", version, "a"));
+            if (version % 3 == 0) {
+                migrations.add(migration("logic", version, "b"));
+                migrations.add(migration("auth", version, "c"));
+            }
+        }
+
+        ListMultimap<String, MigrationData> result = MigrationParser.group(migrations);
+        List<MigrationData> logic = result.get("logic");
+        Assertions.assertEquals(5000, logic.size());
+        Assertions.assertEquals(1666, result.get("auth").size());
+        for (int i = 0; i < logic.size(); i++) {
+            MigrationData data = logic.get(i);
+            int version = i + 1;
+            Assertions.assertEquals(version, data.getVersion());
+            Assertions.assertNotNull(data.getChecksum());
+
+            List<String> expected = version % 3 == 0
+                ? Arrays.asList("logic_" + version + "_a", "logic_" + version + "_b")
+                : Collections.singletonList("logic_" + version + "_a");
+            Assertions.assertEquals(expected, data.getUpQueries());
+            Assertions.assertEquals(expected, data.getResources());
+            Assertions.assertEquals(String.join("+", expected.stream().map(e -> e.substring(e.length() - 1)).toArray(String[]::new)),
+                data.getName());
+        }
+    }
+
+    @Test
+    public void smallBufferRefills() throws Exception {
+        StringBuilder script = new StringBuilder("# --- !Ups\n");
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String statement = "insert into t values(" + i + ", 'value;" + i + "', $q$ body; " + i + " $q$)";
+            script.append(statement).append(";\n");
+            expected.add(statement);
+        }
+
+        Assertions.assertEquals(expected, parse(script.toString()).getUpQueries());
+    }
+
+    private static MigrationData migration(String component, int version, String name) {
+        String query = component + "_" + version + "_" + name;
+        MigrationData data = new MigrationData();
+        data.setComponent(component);
+        data.setVersion(version);
+        data.setName(name);
+        data.getUpQueries().add(query);
+        data.getDownQueries().add(query);
+        data.getResources().add(query);
+        return data;
+    }
+
+    private static MigrationData parse(String script) throws Exception {
+        return MigrationParser.createMigration("evolution/test_1_script.sql", new StringReader(script));
+    }
+
+    /**
+     * Checksum calculated by regex line based parser of previous versions.
+     */
+    private static String legacyChecksum(String... contents) throws Exception {
+        return legacyChecksum(Charset.defaultCharset(), contents);
+    }
+
+    /**
+     * Checksum calculated by regex line based parser of previous versions with platform default charset.
+     */
+    private static String legacyChecksum(Charset charset, String... contents) throws Exception {
+        List<String> up = new ArrayList<>();
+        List<String> down = new ArrayList<>();
+        for (String content : contents) {
+            legacyParse(content, up, down);
+        }
+
+        MessageDigest digest = MigrationChecksums.createDigest();
+        up.forEach(e -> digest.update(e.getBytes(charset)));
+        down.forEach(e -> digest.update(e.getBytes(charset)));
+        return new String(Base64.getEncoder().encode(digest.digest()));
+    }
+
+    private static void legacyParse(String content, List<String> up, List<String> down) {
+        List<String> queries = up;
+        StringBuilder query = new StringBuilder();
+        for (String line : content.split("(\r\n)|\r|\n")) {
+            if (line.matches("#\\s*---\\s*!Ups\\s*") || line.matches("#\\s*---\\s*!Downs\\s*")) {
+                if (query.length() != 0) {
+                    queries.add(query.toString());
+                    query.setLength(0);
+                }
+                queries = line.contains("!Ups") ? up : down;
+            }
+
+            if (StringUtils.isBlank(line) || line.charAt(0) == '#') {
+                continue;
+            }
+
+            boolean endQuery = false;
+            if (line.contains(";;")) {
+                line = line.replaceAll(";;", ";");
+            } else if (line.contains(";")) {
+                line = line.replaceFirst(";", "");
+                endQuery = true;
+            }
+
+            query.append(line);
+            if (endQuery) {
+                queries.add(query.toString());
+                query.setLength(0);
+            }
+        }
+
+        if (query.length() != 0) {
+            queries.add(query.toString());
+        }
+    }
+
+    @ChunkedEvolution(component = "chunked_test", version = 2, name = "backfill", chunkSize = 100)
+    public static class Backfill implements ChunkedMigration {
+
+        @Override
+        public long getFirstKey(Connection connection) {
+            return 0;
+        }
+
+        @Override
+        public long getLastKey(Connection connection) {
+            return -1;
+        }
+
+        @Override
+        public void processChunk(Connection connection, long fromKey, long toKey) {
+            // nothing to process
+        }
+
+    }
+
+}
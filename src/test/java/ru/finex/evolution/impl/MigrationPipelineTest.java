@@ -0,0 +1,77 @@
+package ru.finex.evolution.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * @author m0nster.mind
+ */
+public class MigrationPipelineTest {
+
+    private static final int DEPTH = 2;
+
+    @Test
+    public void keepsOrderAndBound() {
+        List<Integer> values = IntStream.range(0, 100)
+            .boxed()
+            .collect(Collectors.toList());
+
+        AtomicInteger prepared = new AtomicInteger();
+        List<String> applied = new ArrayList<>();
+        MigrationPipeline.run(values, value -> {
+            prepared.incrementAndGet();
+            return "value-" + value;
+        }, value -> {
+            // prepared but not applied: queue, producer hand and the current one
+            Assertions.assertTrue(prepared.get() - applied.size() <= DEPTH + 2);
+            applied.add(value);
+        }, DEPTH, "test");
+
+        Assertions.assertEquals(values.stream().map(value -> "value-" + value).collect(Collectors.toList()), applied);
+    }
+
+    @Test
+    public void prepareFailure() {
+        List<Integer> values = IntStream.range(0, 10)
+            .boxed()
+            .collect(Collectors.toList());
+
+        List<Integer> applied = new ArrayList<>();
+        IllegalStateException exception = Assertions.assertThrows(IllegalStateException.class, () -> MigrationPipeline.run(values, value -> {
+            if (value == 5) {
+                throw new IllegalStateException("prepare " + value);
+            }
+            return value;
+        }, applied::add, DEPTH, "test"));
+
+        Assertions.assertEquals("prepare 5", exception.getMessage());
+        Assertions.assertEquals(IntStream.range(0, 5).boxed().collect(Collectors.toList()), applied);
+    }
+
+    @Test
+    public void applyFailureStopsPreparation() {
+        List<Integer> values = IntStream.range(0, 1000)
+            .boxed()
+            .collect(Collectors.toList());
+
+        AtomicInteger prepared = new AtomicInteger();
+        IllegalStateException exception = Assertions.assertThrows(IllegalStateException.class, () -> MigrationPipeline.run(values, value -> {
+            prepared.incrementAndGet();
+            return value;
+        }, value -> {
+            if (value == 3) {
+                throw new IllegalStateException("apply " + value);
+            }
+        }, DEPTH, "test"));
+
+        Assertions.assertEquals("apply 3", exception.getMessage());
+        Assertions.assertTrue(prepared.get() <= 4 + DEPTH + 1, "prepared: " + prepared.get());
+    }
+
+}
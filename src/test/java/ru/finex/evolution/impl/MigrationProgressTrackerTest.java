@@ -0,0 +1,50 @@
+package ru.finex.evolution.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.finex.evolution.MigrationEstimate;
+import ru.finex.evolution.MigrationProgress;
+
+import java.util.Arrays;
+
+/**
+ * @author m0nster.mind
+ */
+public class MigrationProgressTrackerTest {
+
+    @Test
+    public void weightsByDuration() {
+        MigrationProgressTracker tracker = new MigrationProgressTracker(new MigrationEstimate(Arrays.asList(
+            new MigrationEstimate.Version("logic", 1, null, 100),
+            new MigrationEstimate.Version("logic", 2, null, 300),
+            new MigrationEstimate.Version("auth", 1, null, -1)
+        ), 600));
+
+        MigrationProgress progress = tracker.complete("logic", 2);
+        Assertions.assertEquals(1, progress.getCompletedVersions());
+        Assertions.assertEquals(3, progress.getTotalVersions());
+        Assertions.assertEquals(50.0, progress.getPercent(), 0.001);
+        // unknown version is estimated by average of known ones
+        Assertions.assertEquals(300, progress.getRemainingNanos());
+
+        Assertions.assertNull(tracker.complete("logic", 3));
+        Assertions.assertEquals(83.333, tracker.complete("auth", 1).getPercent(), 0.001);
+        Assertions.assertEquals(100.0, tracker.complete("logic", 1).getPercent(), 0.001);
+    }
+
+    @Test
+    public void countsVersionsWithoutDurations() {
+        MigrationProgressTracker tracker = new MigrationProgressTracker(new MigrationEstimate(Arrays.asList(
+            new MigrationEstimate.Version("logic", 1, null, -1),
+            new MigrationEstimate.Version("logic", 2, null, -1),
+            new MigrationEstimate.Version("logic", 3, null, -1),
+            new MigrationEstimate.Version("logic", 4, null, -1)
+        ), -1));
+
+        MigrationProgress progress = tracker.complete("logic", 1);
+        Assertions.assertEquals(25.0, progress.getPercent(), 0.001);
+        // remaining time is extrapolated from elapsed one
+        Assertions.assertEquals(progress.getElapsedNanos() * 3, progress.getRemainingNanos(), 3);
+    }
+
+}
@@ -0,0 +1,45 @@
+package ru.finex.evolution.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.finex.evolution.MigrationResult;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author m0nster.mind
+ */
+public class MigrationTargetsTest {
+
+    private static final List<String> TARGETS = Arrays.asList("t0", "t1", "t2", "t3", "t4");
+
+    @Test
+    public void isolatesFailure() {
+        MigrationResult result = MigrationTargets.migrate(TARGETS, MigrationTargetsTest::createEngine, engine -> { }, 3, false, "test");
+
+        Assertions.assertEquals(Arrays.asList("t0", "t1", "t3", "t4"), result.getMigrated());
+        Assertions.assertEquals(Collections.singleton("t2"), result.getFailures().keySet());
+        Assertions.assertEquals("t2", result.getFailures().get("t2").getMessage());
+        Assertions.assertTrue(result.getSkipped().isEmpty());
+        Assertions.assertFalse(result.isSuccessful());
+    }
+
+    @Test
+    public void failFastSkipsNotStarted() {
+        MigrationResult result = MigrationTargets.migrate(TARGETS, MigrationTargetsTest::createEngine, engine -> { }, 1, true, "test");
+
+        Assertions.assertEquals(Arrays.asList("t0", "t1"), result.getMigrated());
+        Assertions.assertEquals(Collections.singleton("t2"), result.getFailures().keySet());
+        Assertions.assertEquals(Arrays.asList("t3", "t4"), result.getSkipped());
+    }
+
+    private static MigrationEngine createEngine(String target) {
+        if (target.equals("t2")) {
+            throw new IllegalStateException(target);
+        }
+        return null;
+    }
+
+}
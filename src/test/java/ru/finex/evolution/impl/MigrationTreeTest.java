@@ -0,0 +1,215 @@
+package ru.finex.evolution.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.finex.evolution.ClasspathScanner;
+import ru.finex.evolution.Evolution;
+import ru.finex.evolution.MigrationConfig;
+import ru.finex.evolution.ReportTotalsBackfill;
+import ru.finex.evolution.Schemas;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * @author m0nster.mind
+ */
+public class MigrationTreeTest {
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void createExecutor() {
+        executor = MigrationExecutors.newBoundedExecutor(4, "evolution-test");
+    }
+
+    @Test
+    public void parallelRespectsDependencies() {
+        MigrationTree tree = new MigrationTree(Arrays.asList(
+            evolution("auth"),
+            evolution("logs"),
+            evolution("logic", "auth"),
+            evolution("billing", "auth", "logic"),
+            evolution("reports", "logic", "logs")
+        ));
+
+        List<String> completed = new CopyOnWriteArrayList<>();
+        Map<String, Integer> visits = new ConcurrentHashMap<>();
+        tree.applyOperation(component -> {
+            visits.merge(component, 1, Integer::sum);
+            completed.add(component);
+        }, executor);
+
+        Assertions.assertEquals(5, completed.size());
+        visits.values().forEach(count -> Assertions.assertEquals(1, count));
+        assertBefore(completed, "auth", "logic");
+        assertBefore(completed, "auth", "billing");
+        assertBefore(completed, "logic", "billing");
+        assertBefore(completed, "logic", "reports");
+        assertBefore(completed, "logs", "reports");
+    }
+
+    @Test
+    public void parallelStopsOnFailure() {
+        MigrationTree tree = new MigrationTree(Arrays.asList(
+            evolution("auth"),
+            evolution("logic", "auth"),
+            evolution("billing", "logic")
+        ));
+
+        AtomicInteger calls = new AtomicInteger();
+        RuntimeException exception = Assertions.assertThrows(IllegalStateException.class, () -> tree.applyOperation(component -> {
+            calls.incrementAndGet();
+            if (component.equals("logic")) {
+                throw new IllegalStateException("logic failed");
+            }
+        }, executor));
+
+        Assertions.assertEquals("logic failed", exception.getMessage());
+        Assertions.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void diamondVisitedOnce() {
+        MigrationTree tree = new MigrationTree(Arrays.asList(
+            evolution("reports", "billing", "logic"),
+            evolution("billing", "auth"),
+            evolution("logic", "auth"),
+            evolution("auth", "auth")
+        ));
+
+        List<String> order = new ArrayList<>();
+        tree.applyOperation(order::add);
+        Assertions.assertEquals(Arrays.asList("auth", "billing", "logic", "reports"), order);
+
+        order.clear();
+        tree.applyOperation("billing", order::add);
+        Assertions.assertEquals(Arrays.asList("auth", "billing"), order);
+
+        Assertions.assertEquals(Arrays.asList("auth", "billing", "logic"), tree.getTransitiveDependencies("reports"));
+        Assertions.assertEquals(Collections.emptyList(), tree.getTransitiveDependencies("auth"));
+    }
+
+    @Test
+    public void parallelSubset() {
+        MigrationTree tree = new MigrationTree(Arrays.asList(
+            evolution("auth"),
+            evolution("logs"),
+            evolution("logic", "auth")
+        ));
+
+        List<String> completed = new CopyOnWriteArrayList<>();
+        tree.applyOperation("logic", completed::add, executor);
+        Assertions.assertEquals(Arrays.asList("auth", "logic"), completed);
+    }
+
+    @Test
+    public void cycleRejected() {
+        IllegalStateException exception = Assertions.assertThrows(IllegalStateException.class, () -> new MigrationTree(Arrays.asList(
+            evolution("auth"),
+            evolution("logic", "auth", "billing"),
+            evolution("billing", "logic")
+        )));
+        Assertions.assertTrue(exception.getMessage().contains("[logic, billing]"), exception.getMessage());
+    }
+
+    @Test
+    public void unknownDependencyRejected() {
+        Assertions.assertThrows(IllegalStateException.class, () -> new MigrationTree(Arrays.asList(
+            evolution("logic", "auth")
+        )));
+    }
+
+    @Test
+    public void generatedRegistry() {
+        Map<String, Set<String>> registry = EvolutionRegistry.load(getClass().getClassLoader());
+        Assertions.assertEquals(Collections.emptySet(), registry.get("auth"));
+        Assertions.assertEquals(Collections.singleton("auth"), registry.get("logic"));
+        Assertions.assertEquals(Collections.emptySet(), registry.get("logs"));
+
+        MigrationTree tree = new MigrationTree(registry);
+        Assertions.assertEquals(Collections.singletonList("auth"), tree.getTransitiveDependencies("logic"));
+
+        Assertions.assertTrue(EvolutionRegistry.isPresent(getClass().getClassLoader()));
+        Assertions.assertEquals(
+            new HashSet<>(Arrays.asList(MigrationParserTest.Backfill.class.getName(), ReportTotalsBackfill.class.getName())),
+            EvolutionRegistry.loadChunked(getClass().getClassLoader())
+        );
+    }
+
+    @Test
+    public void registryMergedWithScanned() {
+        Map<String, Set<String>> registry = EvolutionRegistry.load(getClass().getClassLoader());
+        MigrationTree tree = new MigrationTree(MigrationTree.merge(Collections.singletonList(evolution("scanned", "logic")), registry));
+        Assertions.assertEquals(Arrays.asList("auth", "logic"), tree.getTransitiveDependencies("scanned"));
+        Assertions.assertTrue(tree.getComponents().contains("logs"), tree.getComponents().toString());
+
+        MigrationConfig config = new MigrationConfig();
+        tree = new MigrationTree(scanner(Schemas.LogSchema.class), config);
+        Assertions.assertTrue(tree.getComponents().containsAll(Arrays.asList("auth", "logic", "logs")), tree.getComponents().toString());
+
+        config.setRegistryOnly(true);
+        tree = new MigrationTree(scanner(), config);
+        Assertions.assertTrue(tree.getComponents().containsAll(Arrays.asList("auth", "logic", "logs")), tree.getComponents().toString());
+    }
+
+    @AfterEach
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    private static void assertBefore(List<String> order, String first, String second) {
+        Assertions.assertTrue(order.indexOf(first) < order.indexOf(second), first + " must be before " + second + ": " + order);
+    }
+
+    private static ClasspathScanner scanner(Class<?>... types) {
+        return new ClasspathScanner() {
+            @Override
+            public Collection<Class<?>> getTypesAnnotatedWith(Class<? extends Annotation> annotation) {
+                if (types.length == 0) {
+                    throw new AssertionError("Classpath must not be scanned");
+                }
+                return Arrays.asList(types);
+            }
+
+            @Override
+            public Collection<String> getResources(Pattern pattern) {
+                throw new AssertionError("Classpath must not be scanned");
+            }
+        };
+    }
+
+    static Evolution evolution(String value, String... dependencies) {
+        return new Evolution() {
+            @Override
+            public String value() {
+                return value;
+            }
+
+            @Override
+            public String[] dependencies() {
+                return dependencies;
+            }
+
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return Evolution.class;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,77 @@
+package ru.finex.evolution.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.finex.evolution.MigrationPlan;
+import ru.finex.evolution.MigrationPlan.Kind;
+import ru.finex.evolution.MigrationPlan.Lock;
+
+/**
+ * @author m0nster.mind
+ */
+public class SqlLocksTest {
+
+    @Test
+    public void classifiesDdl() {
+        assertLock("alter table public.users add column age int", Lock.ACCESS_EXCLUSIVE, "public.users");
+        assertLock("ALTER TABLE ONLY users VALIDATE CONSTRAINT users_age_check", Lock.SHARE_UPDATE_EXCLUSIVE, "users");
+        assertLock("alter table orders add constraint orders_user_fk foreign key (user_id) references users(id) not valid",
+            Lock.SHARE_ROW_EXCLUSIVE, "orders");
+        assertLock("create index concurrently if not exists users_age_idx on users(age)", Lock.SHARE_UPDATE_EXCLUSIVE, "users");
+        assertLock("create unique index users_email_idx on \"Users\" using btree(email)", Lock.SHARE, "\"Users\"");
+        assertLock("-- cleanup\n/* old table */ drop table if exists legacy", Lock.ACCESS_EXCLUSIVE, "legacy");
+        assertLock("lock table users in share row exclusive mode", Lock.SHARE_ROW_EXCLUSIVE, "users");
+        assertLock("create table users(id bigint)", null, null);
+    }
+
+    @Test
+    public void classifiesDml() {
+        MigrationPlan.Statement statement = SqlLocks.classify("update users set age = 0 where age is null");
+        Assertions.assertTrue(statement.isDml());
+        Assertions.assertEquals(Lock.ROW_EXCLUSIVE, statement.getLock());
+        Assertions.assertEquals("users", statement.getTable());
+
+        Assertions.assertTrue(SqlLocks.classify("insert into users(id) select id from legacy").isDml());
+        Assertions.assertFalse(SqlLocks.classify("create index users_idx on users(id)").isDml());
+    }
+
+    @Test
+    public void classifiesCatalogOnlyStatements() {
+        assertKind("create table users(id bigint primary key, name varchar)", Kind.CATALOG);
+        assertKind("create type user_state as enum ('active', 'blocked')", Kind.CATALOG);
+        assertKind("alter table users add column age int", Kind.CATALOG);
+        assertKind("alter table users add if not exists nickname varchar", Kind.CATALOG);
+
+        assertKind("create table users_copy as select * from users", Kind.DDL);
+        assertKind("create table users_copy(id) as select id from users", Kind.DDL);
+        assertKind("create table users_2024 partition of users for values in (2024)", Kind.DDL);
+        assertKind("alter table users add column age int not null default 0", Kind.DDL);
+        assertKind("alter table users add column created timestamp default now()", Kind.DDL);
+        assertKind("alter table users add column id2 bigserial", Kind.DDL);
+        assertKind("alter table users add column a int, add column b int", Kind.DDL);
+        assertKind("alter table users add constraint users_age_check check (age > 0)", Kind.DDL);
+        assertKind("alter table users alter column age type bigint", Kind.DDL);
+        assertKind("create index concurrently users_age_idx on users(age)", Kind.DDL);
+    }
+
+    @Test
+    public void unknownStatements() {
+        MigrationPlan.Statement statement = SqlLocks.classify("do $$ begin perform 1; end $$");
+        Assertions.assertEquals(Kind.UNKNOWN, statement.getKind());
+        Assertions.assertNull(statement.getLock());
+        Assertions.assertEquals(Kind.UNKNOWN, SqlLocks.classify("call refresh_users()").getKind());
+        Assertions.assertEquals(Kind.UNKNOWN, SqlLocks.classify("create function f() returns int as 'select 1' language sql").getKind());
+    }
+
+    private static void assertKind(String sql, Kind kind) {
+        Assertions.assertEquals(kind, SqlLocks.classify(sql).getKind(), sql);
+    }
+
+    private static void assertLock(String sql, Lock lock, String table) {
+        MigrationPlan.Statement statement = SqlLocks.classify(sql);
+        Assertions.assertEquals(lock, statement.getLock(), sql);
+        Assertions.assertEquals(table, statement.getTable(), sql);
+        Assertions.assertFalse(statement.isDml(), sql);
+    }
+
+}
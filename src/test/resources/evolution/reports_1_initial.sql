@@ -0,0 +1,11 @@
+# --- !Ups
+create table reports(
+    id serial primary key,
+    user_id int not null references users(id),
+    title varchar not null
+);
+
+insert into reports(user_id, title) values(1, 'daily');
+
+# --- !Downs
+drop table if exists reports;
\ No newline at end of file
@@ -0,0 +1,8 @@
+# --- !Ups
+create table report_totals(
+    report_id int primary key references reports(id),
+    total numeric not null
+);
+
+# --- !Downs
+drop table if exists report_totals;
\ No newline at end of file
@@ -0,0 +1,18 @@
+# --- !Ups nontransactional
+create table report_rows(
+    id serial primary key,
+    report_id int not null references reports(id),
+    amount numeric not null
+);
+
+insert into report_rows(report_id, amount) values(1, 10);
+
+create index concurrently report_rows_report_idx on report_rows(report_id);
+
+create table report_archive(
+    report_id int primary key references reports(id)
+);
+
+# --- !Downs
+drop table if exists report_archive;
+drop table if exists report_rows;
\ No newline at end of file
@@ -0,0 +1,6 @@
+# --- !Deferred
+# --- !Ups
+create index report_totals_total_idx on report_totals(total);
+
+# --- !Downs
+drop index if exists report_totals_total_idx;